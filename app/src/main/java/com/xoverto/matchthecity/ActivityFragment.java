@@ -2,10 +2,15 @@ package com.xoverto.matchthecity;
 
 import android.app.Activity;
 import android.app.LoaderManager;
+import android.content.AsyncQueryHandler;
+import android.content.ContentValues;
+import android.content.ContentUris;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.app.Fragment;
 import android.view.LayoutInflater;
@@ -14,7 +19,6 @@ import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListAdapter;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -27,12 +31,15 @@ import android.widget.Toast;
  * Activities containing this fragment MUST implement the {@link Callbacks}
  * interface.
  */
-public class ActivityFragment extends Fragment implements AbsListView.OnItemClickListener, LoaderManager.LoaderCallbacks<Cursor> {
+public class ActivityFragment extends Fragment implements AbsListView.OnItemClickListener, AbsListView.OnItemLongClickListener, LoaderManager.LoaderCallbacks<Cursor> {
 
         public static final String TAG = "VENUES";
 
         private OnFragmentInteractionListener mListener;
-        private SimpleCursorAdapter mCursorAdapter;
+        private DiffCursorAdapter mCursorAdapter;
+        private boolean mRefreshRequested;
+        private SyncProgress.EmptyViewUpdater mProgressUpdater;
+        private final ActivityRow mRow = new ActivityRow();
 
         /**
          * The fragment's ListView/GridView.
@@ -71,7 +78,7 @@ public class ActivityFragment extends Fragment implements AbsListView.OnItemClic
             View view = inflater.inflate(R.layout.fragment_venue, container, false);
 
             // Set the adapter
-            mCursorAdapter = new SimpleCursorAdapter(getActivity(),
+            mCursorAdapter = new DiffCursorAdapter(getActivity(),
                     android.R.layout.simple_list_item_1,
                     null,
                     new String[] { DataProvider.KEY_ACTIVITY_TITLE},
@@ -79,15 +86,18 @@ public class ActivityFragment extends Fragment implements AbsListView.OnItemClic
 
 
             mListView = (AbsListView) view.findViewById(android.R.id.list);
+            // Show how far the sync has got while there is nothing to list
+            TextView emptyView = (TextView) view.findViewById(android.R.id.empty);
+            mListView.setEmptyView(emptyView);
+            mProgressUpdater = new SyncProgress.EmptyViewUpdater(FeedDescriptor.ACTIVITIES.name, emptyView);
             ((AdapterView<ListAdapter>) mListView).setAdapter(mCursorAdapter);
 
             // Set OnItemClickListener so we can be notified on item clicks
             mListView.setOnItemClickListener(this);
+            mListView.setOnItemLongClickListener(this);
 
             getLoaderManager().initLoader(0, null, this);
 
-            refreshVenues();
-
             return view;
         }
 
@@ -113,16 +123,30 @@ public class ActivityFragment extends Fragment implements AbsListView.OnItemClic
             mListener = null;
         }
 
+        @Override
+        public void onResume() {
+            super.onResume();
+            mProgressUpdater.register(getActivity());
+        }
+
+        @Override
+        public void onPause() {
+            super.onPause();
+            mProgressUpdater.unregister(getActivity());
+        }
+
 
         @Override
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 
-            Cursor cursor = (Cursor)mCursorAdapter.getItem(position);
-            String value = cursor.getString(cursor
-                    .getColumnIndex(DataProvider.KEY_ACTIVITY_TITLE));
+            String value = mRow.wrap((Cursor) mCursorAdapter.getItem(position)).getTitle();
 
 
-            Toast.makeText(parent.getContext(), value, Toast.LENGTH_SHORT).show();
+            // Show just the opportunities for this item
+            Intent intent = new Intent(getActivity(), OpportunitiesActivity.class);
+            intent.putExtra(OpportunitiesActivity.EXTRA_OPPORTUNITIES_URI,
+                    Uri.withAppendedPath(ContentUris.withAppendedId(DataProvider.CONTENT_URI_ACTIVITIES, id), DataProvider.PATH_OPPORTUNITIES));
+            startActivity(intent);
             if (null != mListener) {
                 // Notify the active callbacks interface (the activity, if the
                 // fragment is attached to one) that an item has been selected.
@@ -130,6 +154,46 @@ public class ActivityFragment extends Fragment implements AbsListView.OnItemClic
             }
         }
 
+        @Override
+        public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+            mRow.wrap((Cursor) mCursorAdapter.getItem(position));
+            addFavourite(mRow.getActivityId(), mRow.getTitle());
+            return true;
+        }
+
+        /**
+         * Save the activity as a favourite, so new opportunities for it are picked up on each sync.
+         */
+        private void addFavourite(final String activityId, final String title) {
+            final Context context = getActivity().getApplicationContext();
+            AsyncQueryHandler handler = new AsyncQueryHandler(context.getContentResolver()) {
+                @Override
+                protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+                    boolean exists = cursor != null && cursor.getCount() > 0;
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    if (exists) {
+                        Toast.makeText(context, context.getString(R.string.favourite_exists, title), Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put(DataProvider.KEY_SEARCH_KIND, DataProvider.SEARCH_KIND_FAVOURITE);
+                    values.put(DataProvider.KEY_SEARCH_NAME, title);
+                    values.put(DataProvider.KEY_SEARCH_ACTIVITY_ID, activityId);
+                    startInsert(0, null, DataProvider.CONTENT_URI_SAVED_SEARCHES, values);
+                }
+
+                @Override
+                protected void onInsertComplete(int token, Object cookie, Uri uri) {
+                    Toast.makeText(context, context.getString(R.string.favourite_added, title), Toast.LENGTH_SHORT).show();
+                }
+            };
+            handler.startQuery(0, null, DataProvider.CONTENT_URI_SAVED_SEARCHES, new String[] { DataProvider.KEY_ID },
+                    DataProvider.KEY_SEARCH_KIND + "=? AND " + DataProvider.KEY_SEARCH_ACTIVITY_ID + "=?",
+                    new String[] { DataProvider.SEARCH_KIND_FAVOURITE, activityId }, null);
+        }
+
         /**
          * The default content for this Fragment has a TextView that is shown when
          * the list is empty. If you would like to change the text, call this method
@@ -160,14 +224,9 @@ public class ActivityFragment extends Fragment implements AbsListView.OnItemClic
 
         @Override
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-            String[] projection = {
-                    DataProvider.KEY_ID,
-                    DataProvider.KEY_ACTIVITY_TITLE,
-                    DataProvider.KEY_ACTIVITY_CATEGORY
-            };
-            CursorLoader loader = new CursorLoader(getActivity(),
+            CursorLoader loader = new DiffCursorLoader(getActivity(),
                     DataProvider.CONTENT_URI_ACTIVITIES,
-                    projection, null, null, null);
+                    ActivityRow.PROJECTION, null, null, null, mCursorAdapter.getBoundColumns());
 
             return loader;
         }
@@ -176,6 +235,14 @@ public class ActivityFragment extends Fragment implements AbsListView.OnItemClic
         public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
             mCursorAdapter.swapCursor(cursor);
 
+            // Sync once there is something on screen, rather than on the launch path
+            if (cursor != null && cursor.getCount() > 0) {
+                StartupTrace.firstContent(getClass().getSimpleName());
+            }
+            if (!mRefreshRequested) {
+                mRefreshRequested = true;
+                DataUpdateService.requestRefreshIfStale(getActivity());
+            }
         }
 
         @Override
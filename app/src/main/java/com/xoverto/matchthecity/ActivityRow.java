@@ -0,0 +1,55 @@
+package com.xoverto.matchthecity;
+
+import android.database.Cursor;
+
+/**
+ * Typed view of an activity row from {@link DataProvider}, for a cursor queried with {@link #PROJECTION}.
+ * <p>
+ * The column indices are resolved once per cursor, so one instance can be reused for every row
+ * while binding or iterating without any per row lookups or allocation.
+ */
+public final class ActivityRow {
+
+    public static final String[] PROJECTION = {
+            DataProvider.KEY_ID,
+            DataProvider.KEY_ACTIVITY_ID,
+            DataProvider.KEY_ACTIVITY_TITLE,
+            DataProvider.KEY_ACTIVITY_CATEGORY
+    };
+
+    private Cursor cursor;
+    private int idColumn;
+    private int activityIdColumn;
+    private int titleColumn;
+    private int categoryColumn;
+
+    /**
+     * Read the current row of cursor, resolving the column indices if it is a new cursor.
+     */
+    public ActivityRow wrap(Cursor cursor) {
+        if (cursor != this.cursor) {
+            this.cursor = cursor;
+            idColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ID);
+            activityIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ACTIVITY_ID);
+            titleColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ACTIVITY_TITLE);
+            categoryColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ACTIVITY_CATEGORY);
+        }
+        return this;
+    }
+
+    public long getId() {
+        return cursor.getLong(idColumn);
+    }
+
+    public String getActivityId() {
+        return cursor.getString(activityIdColumn);
+    }
+
+    public String getTitle() {
+        return cursor.getString(titleColumn);
+    }
+
+    public String getCategory() {
+        return cursor.getString(categoryColumn);
+    }
+}
@@ -0,0 +1,160 @@
+package com.xoverto.matchthecity;
+
+import android.content.ClipDescription;
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the rows of a provider query to the write end of a pipe as CSV or newline delimited
+ * JSON, for {@link DataProvider#openTypedAssetFile}.
+ * <p>
+ * The rows are read from the cursor one at a time and written through a small buffer, so neither
+ * side holds more than a window of rows however large the table. A reader that falls behind fills
+ * the pipe and blocks the writer until it catches up.
+ */
+public class CursorExporter implements ContentProvider.PipeDataWriter<Cursor> {
+
+    public static final String TAG = "CURSOR_EXPORTER";
+
+    public static final String MIME_CSV = "text/csv";
+    public static final String MIME_NDJSON = "application/x-ndjson";
+
+    private static final String[] STREAM_TYPES = { MIME_CSV, MIME_NDJSON };
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The export types matching mimeTypeFilter, or null if there are none.
+     */
+    public static String[] getStreamTypes(String mimeTypeFilter) {
+        List<String> types = new ArrayList<String>();
+        for (String type : STREAM_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType, Bundle opts, Cursor cursor) {
+        long start = SystemClock.elapsedRealtime();
+        int rows = 0;
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output.getFileDescriptor()), "UTF-8"), BUFFER_SIZE);
+            String[] columns = cursor.getColumnNames();
+            boolean csv = MIME_CSV.equals(mimeType);
+            if (csv) {
+                for (int i = 0; i < columns.length; i++) {
+                    writeCsvField(writer, i, columns[i]);
+                }
+                writer.write('\n');
+            }
+            while (cursor.moveToNext()) {
+                if (csv) {
+                    writeCsvRow(writer, cursor);
+                } else {
+                    writeJsonRow(writer, columns, cursor);
+                }
+                rows++;
+            }
+            writer.flush();
+            Log.d(TAG, "Exported " + rows + " rows of " + uri + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        } catch (IOException e) {
+            // Usually the reader closing its end early
+            Log.d(TAG, "Export of " + uri + " stopped after " + rows + " rows: " + e);
+        } finally {
+            cursor.close();
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // The pipe is closed either way
+                }
+            }
+        }
+    }
+
+    private static void writeCsvRow(Writer writer, Cursor cursor) throws IOException {
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    writeCsvField(writer, i, "");
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    writeCsvField(writer, i, Base64.encodeToString(cursor.getBlob(i), Base64.NO_WRAP));
+                    break;
+                default:
+                    writeCsvField(writer, i, cursor.getString(i));
+                    break;
+            }
+        }
+        writer.write('\n');
+    }
+
+    // Quoted as RFC 4180 when the value holds a separator, quote or line break
+    private static void writeCsvField(Writer writer, int index, String value) throws IOException {
+        if (index > 0) {
+            writer.write(',');
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private static void writeJsonRow(Writer writer, String[] columns, Cursor cursor) throws IOException {
+        writer.write('{');
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(JSONObject.quote(columns[i]));
+            writer.write(':');
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    writer.write("null");
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    writer.write(String.valueOf(cursor.getLong(i)));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    double value = cursor.getDouble(i);
+                    // JSON has no NaN or infinity
+                    writer.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    writer.write(JSONObject.quote(Base64.encodeToString(cursor.getBlob(i), Base64.NO_WRAP)));
+                    break;
+                default:
+                    writer.write(JSONObject.quote(cursor.getString(i)));
+                    break;
+            }
+        }
+        writer.write("}\n");
+    }
+}
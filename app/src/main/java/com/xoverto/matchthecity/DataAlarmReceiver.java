@@ -3,6 +3,7 @@ package com.xoverto.matchthecity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
 
 /**
  * Created by andrew on 12/07/2014.
@@ -13,6 +14,17 @@ public class DataAlarmReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+            DataUpdateService.requestMaintenance(context);
+        }
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action) || Intent.ACTION_POWER_CONNECTED.equals(action)) {
+            // Only wake the service when a deferred sync of the heavy feeds can now go ahead
+            if (!SyncPolicy.isHeavySyncPending(context) || !SyncPolicy.forCurrentConditions(context).canSyncHeavyFeeds()) {
+                return;
+            }
+        }
+
         Intent startIntent = new Intent(context, DataUpdateService.class);
         context.startService(startIntent);
     }
@@ -1,28 +1,112 @@
 package com.xoverto.matchthecity;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
 public class DataProvider extends ContentProvider {
 
+    public static final String AUTHORITY = "com.xoverto.matchthecity";
+
     public static final Uri CONTENT_URI_VENUES = Uri.parse("content://com.xoverto.matchthecity/venues");
     public static final Uri CONTENT_URI_ACTIVITIES = Uri.parse("content://com.xoverto.matchthecity/activities");
     public static final Uri CONTENT_URI_SUB_ACTIVITIES = Uri.parse("content://com.xoverto.matchthecity/sub_activities");
     public static final Uri CONTENT_URI_OPPORTUNITIES = Uri.parse("content://com.xoverto.matchthecity/opportunities");
 
+    // Appended to a single venue, activity or sub activity URI to get just its opportunities,
+    // e.g. content://com.xoverto.matchthecity/activities/3/opportunities
+    public static final String PATH_OPPORTUNITIES = "opportunities";
+
+    // Number of opportunities on each day of the week
+    public static final Uri CONTENT_URI_DAY_COUNTS = Uri.parse("content://com.xoverto.matchthecity/day_counts");
+
+    // Dated occurrences of the weekly opportunities, with the opportunity columns joined in.
+    // Use occurrencesBetween to get the occurrences in a range of time.
+    public static final Uri CONTENT_URI_OCCURRENCES = Uri.parse("content://com.xoverto.matchthecity/occurrences");
+    public static final String QUERY_START = "start";
+    public static final String QUERY_END = "end";
+
+    // Saved searches and favourite activities, each with the number of matches not yet seen.
+    // The matches of a search are at saved_searches/#/matches.
+    public static final Uri CONTENT_URI_SAVED_SEARCHES = Uri.parse("content://com.xoverto.matchthecity/saved_searches");
+    public static final String PATH_MATCHES = "matches";
+    public static final String SEARCH_KIND_SEARCH = "search";
+    public static final String SEARCH_KIND_FAVOURITE = "favourite";
+
+    // The lists are scoped to the active region (see Regions) unless this parameter names another
+    public static final String QUERY_REGION = "region";
+
+    // Call method extending the occurrences to the rolling horizon, run daily by DataUpdateService
+    public static final String METHOD_EXTEND_OCCURRENCES = "extend_occurrences";
+
+    // Call method reclaiming free pages and, as the extras ask, updating the planner statistics and
+    // checking integrity. The result holds the quick check result if one was run.
+    public static final String METHOD_MAINTAIN = "maintain";
+    public static final String EXTRA_ANALYZE = "analyze";
+    public static final String EXTRA_QUICK_CHECK = "quick_check";
+
+    // Call methods reading and storing the change cursor the server last sent with a feed of a
+    // region. The cursor is kept with the rows it describes, so it is dropped along with them.
+    public static final String METHOD_GET_FEED_CURSOR = "get_feed_cursor";
+    public static final String METHOD_SET_FEED_CURSOR = "set_feed_cursor";
+    public static final String EXTRA_FEED = "feed";
+    public static final String EXTRA_REGION = "region";
+    // Null or missing to clear the cursor
+    public static final String EXTRA_CURSOR = "cursor";
+
+    // Options of openTypedAssetFileDescriptor narrowing an export of any list URI to a filtered
+    // query; the export type is CursorExporter.MIME_CSV or MIME_NDJSON
+    public static final String EXTRA_PROJECTION = "projection";
+    public static final String EXTRA_SELECTION = "selection";
+    public static final String EXTRA_SELECTION_ARGS = "selection_args";
+
     // Column names
     public static final String KEY_ID = "_id"; // All tables use this field
+    public static final String KEY_REGION_ID = "region_id"; // All feed tables use this field
 
     public static final String KEY_VENUE_ID = "venue_id";
     public static final String KEY_NAME = "name";
@@ -54,6 +138,42 @@ public class DataProvider extends ContentProvider {
     public static final String KEY_OPPORTUNITY_END_TIME = "end_time";
     public static final String KEY_OPPORTUNITY_DAY_OF_WEEK = "day_of_week";
 
+    // Labels looked up from the venue, activity and sub activity of an opportunity
+    public static final String KEY_OPPORTUNITY_VENUE_NAME = "venue_name";
+    public static final String KEY_OPPORTUNITY_ACTIVITY_TITLE = "activity_title";
+    public static final String KEY_OPPORTUNITY_SUB_ACTIVITY_TITLE = "sub_activity_title";
+
+    // Extra column on the venue, activity, sub activity and day count results. It is null for
+    // rows that have never had an opportunity.
+    public static final String KEY_OPPORTUNITY_COUNT = "opportunity_count";
+    public static final String KEY_COUNT_KEY = "count_key";
+
+    public static final String KEY_OCCURRENCE_START = "occurrence_start";
+    public static final String KEY_OCCURRENCE_END = "occurrence_end";
+
+    // Saved search columns. Criteria left null match anything.
+    public static final String KEY_SEARCH_KIND = "kind";
+    public static final String KEY_SEARCH_NAME = "name";
+    public static final String KEY_SEARCH_ACTIVITY_ID = "activity_id";
+    public static final String KEY_SEARCH_SUB_ACTIVITY_ID = "sub_activity_id";
+    public static final String KEY_SEARCH_VENUE_ID = "venue_id";
+    public static final String KEY_SEARCH_DAY_OF_WEEK = "day_of_week";
+    public static final String KEY_SEARCH_KEYWORDS = "keywords";
+    public static final String KEY_SEARCH_NEW_MATCHES = "new_matches";
+
+    // Room, day of week and category are stored as ids into small lookup tables and joined back
+    // under their own column names on query
+    private static final String KEY_ROOM_ID = "room_id";
+    private static final String KEY_DAY_ID = "day_id";
+    private static final String KEY_CATEGORY_ID = "category_id";
+
+    private static final String KEY_FEED = "feed";
+    private static final String KEY_FEED_CURSOR = "cursor";
+
+    public static final String KEY_MATCH_SEARCH_ID = "search_id";
+    public static final String KEY_MATCH_FOUND = "found";
+    public static final String KEY_MATCH_SEEN = "seen";
+
     // Create the constants used to differentiate between the different URI requests
     private static final int VENUES = 1;
     private static final int VENUE_ID = 2;
@@ -63,6 +183,18 @@ public class DataProvider extends ContentProvider {
     private static final int SUB_ACTIVITY_ID = 6;
     private static final int OPPORTUNITIES = 7;
     private static final int OPPORTUNITY_ID = 8;
+    private static final int VENUE_OPPORTUNITIES = 9;
+    private static final int ACTIVITY_OPPORTUNITIES = 10;
+    private static final int SUB_ACTIVITY_OPPORTUNITIES = 11;
+    private static final int DAY_COUNTS = 12;
+    private static final int OCCURRENCES = 13;
+    private static final int SAVED_SEARCHES = 14;
+    private static final int SAVED_SEARCH_ID = 15;
+    private static final int SAVED_SEARCH_MATCHES = 16;
+
+    // Occurrences are kept from the start of today until this many days ahead
+    private static final int OCCURRENCE_HORIZON_DAYS = 28;
+    private static final String PREF_OCCURRENCE_HORIZON = "occurrence_horizon";
 
     private static final UriMatcher uriMatcher;
 
@@ -79,67 +211,299 @@ public class DataProvider extends ContentProvider {
         uriMatcher.addURI("com.xoverto.matchthecity", "sub_activities/#", SUB_ACTIVITY_ID);
         uriMatcher.addURI("com.xoverto.matchthecity", "opportunities", OPPORTUNITIES);
         uriMatcher.addURI("com.xoverto.matchthecity", "opportunities/#", OPPORTUNITY_ID);
+        uriMatcher.addURI("com.xoverto.matchthecity", "venues/#/" + PATH_OPPORTUNITIES, VENUE_OPPORTUNITIES);
+        uriMatcher.addURI("com.xoverto.matchthecity", "activities/#/" + PATH_OPPORTUNITIES, ACTIVITY_OPPORTUNITIES);
+        uriMatcher.addURI("com.xoverto.matchthecity", "sub_activities/#/" + PATH_OPPORTUNITIES, SUB_ACTIVITY_OPPORTUNITIES);
+        uriMatcher.addURI("com.xoverto.matchthecity", "day_counts", DAY_COUNTS);
+        uriMatcher.addURI("com.xoverto.matchthecity", "occurrences", OCCURRENCES);
+        uriMatcher.addURI("com.xoverto.matchthecity", "saved_searches", SAVED_SEARCHES);
+        uriMatcher.addURI("com.xoverto.matchthecity", "saved_searches/#", SAVED_SEARCH_ID);
+        uriMatcher.addURI("com.xoverto.matchthecity", "saved_searches/#/" + PATH_MATCHES, SAVED_SEARCH_MATCHES);
+    }
+
+    // Opportunity queries can ask for the labels of the venue, activity and sub activity, each
+    // looked up with a covering index. Occurrences and matches are joined to their opportunity, so
+    // the shared column names need qualifying.
+    private static final HashMap<String, String> opportunityProjectionMap;
+    private static final HashMap<String, String> occurrenceProjectionMap;
+    // A single venue reads as its full detail, see VenueDetail, with the columns it shares with
+    // its count row qualified
+    private static final HashMap<String, String> venueDetailProjectionMap;
+    private static final HashMap<String, String> matchProjectionMap;
+
+    static {
+        opportunityProjectionMap = new HashMap<String, String>();
+        opportunityProjectionMap.put(KEY_ID, KEY_ID);
+        opportunityProjectionMap.put(KEY_OPPORTUNITY_ID, KEY_OPPORTUNITY_ID);
+        opportunityProjectionMap.put(KEY_REGION_ID, DatabaseHelper.OPPORTUNITY_REGION + " AS " + KEY_REGION_ID);
+        occurrenceProjectionMap = new HashMap<String, String>();
+        occurrenceProjectionMap.put(KEY_ID, DatabaseHelper.OCCURRENCE_TABLE + "." + KEY_ID + " AS " + KEY_ID);
+        occurrenceProjectionMap.put(KEY_OPPORTUNITY_ID, DatabaseHelper.OCCURRENCE_TABLE + "." + KEY_OPPORTUNITY_ID + " AS " + KEY_OPPORTUNITY_ID);
+        occurrenceProjectionMap.put(KEY_REGION_ID, DatabaseHelper.OCCURRENCE_REGION + " AS " + KEY_REGION_ID);
+        occurrenceProjectionMap.put(KEY_OCCURRENCE_START, KEY_OCCURRENCE_START);
+        occurrenceProjectionMap.put(KEY_OCCURRENCE_END, KEY_OCCURRENCE_END);
+        String[] opportunityColumns = {
+                KEY_OPPORTUNITY_NAME, KEY_OPPORTUNITY_DESCRIPTION, KEY_OPPORTUNITY_ACTIVITY_ID,
+                KEY_OPPORTUNITY_SUB_ACTIVITY_ID, KEY_OPPORTUNITY_VENUE_ID,
+                KEY_OPPORTUNITY_START_TIME, KEY_OPPORTUNITY_END_TIME
+        };
+        // Only the lookup tables have these, so they need no qualifying
+        String[] lookupColumns = { KEY_OPPORTUNITY_ROOM, KEY_OPPORTUNITY_DAY_OF_WEEK };
+        for (String column : opportunityColumns) {
+            opportunityProjectionMap.put(column, column);
+            occurrenceProjectionMap.put(column, DatabaseHelper.OPPORTUNITY_TABLE + "." + column + " AS " + column);
+        }
+        for (String column : lookupColumns) {
+            opportunityProjectionMap.put(column, column);
+            occurrenceProjectionMap.put(column, column);
+        }
+        putOpportunityLabels(opportunityProjectionMap);
+        putOpportunityLabels(occurrenceProjectionMap);
+
+        venueDetailProjectionMap = new HashMap<String, String>();
+        String[] venueColumns = {
+                KEY_ID, KEY_VENUE_ID, KEY_NAME, KEY_UPDATED, KEY_LOCATION_LAT, KEY_LOCATION_LNG,
+                KEY_ADDRESS, KEY_POSTCODE, KEY_WEB, KEY_EMAIL, KEY_TELEPHONE, KEY_REGION_ID
+        };
+        for (String column : venueColumns) {
+            venueDetailProjectionMap.put(column, DatabaseHelper.VENUE_TABLE + "." + column + " AS " + column);
+        }
+        venueDetailProjectionMap.put(KEY_OPPORTUNITY_COUNT, "IFNULL(" + KEY_OPPORTUNITY_COUNT + ", 0) AS " + KEY_OPPORTUNITY_COUNT);
+
+        // A match row reads as the opportunity it matched
+        matchProjectionMap = new HashMap<String, String>();
+        matchProjectionMap.put(KEY_ID, DatabaseHelper.OPPORTUNITY_TABLE + "." + KEY_ID + " AS " + KEY_ID);
+        matchProjectionMap.put(KEY_OPPORTUNITY_ID, DatabaseHelper.OPPORTUNITY_TABLE + "." + KEY_OPPORTUNITY_ID + " AS " + KEY_OPPORTUNITY_ID);
+        matchProjectionMap.put(KEY_REGION_ID, DatabaseHelper.OPPORTUNITY_REGION + " AS " + KEY_REGION_ID);
+        matchProjectionMap.put(KEY_MATCH_SEARCH_ID, KEY_MATCH_SEARCH_ID);
+        matchProjectionMap.put(KEY_MATCH_FOUND, KEY_MATCH_FOUND);
+        matchProjectionMap.put(KEY_MATCH_SEEN, KEY_MATCH_SEEN);
+        for (String column : opportunityColumns) {
+            matchProjectionMap.put(column, DatabaseHelper.OPPORTUNITY_TABLE + "." + column + " AS " + column);
+        }
+        for (String column : lookupColumns) {
+            matchProjectionMap.put(column, column);
+        }
+        putOpportunityLabels(matchProjectionMap);
+    }
+
+    private static void putOpportunityLabels(HashMap<String, String> projectionMap) {
+        String opportunity = DatabaseHelper.OPPORTUNITY_TABLE + ".";
+        // Venue ids are stored as text, so compare as text to use the index
+        projectionMap.put(KEY_OPPORTUNITY_VENUE_NAME, "(SELECT " + KEY_NAME + " FROM " + DatabaseHelper.VENUE_TABLE
+                + " WHERE " + KEY_VENUE_ID + " = CAST(" + opportunity + KEY_OPPORTUNITY_VENUE_ID + " AS TEXT)"
+                + " AND " + DatabaseHelper.VENUE_TABLE + "." + KEY_REGION_ID + " = " + opportunity + KEY_REGION_ID + " LIMIT 1) AS " + KEY_OPPORTUNITY_VENUE_NAME);
+        projectionMap.put(KEY_OPPORTUNITY_ACTIVITY_TITLE, "(SELECT " + KEY_ACTIVITY_TITLE + " FROM " + DatabaseHelper.ACTIVITY_TABLE
+                + " WHERE " + DatabaseHelper.ACTIVITY_TABLE + "." + KEY_ACTIVITY_ID + " = " + opportunity + KEY_OPPORTUNITY_ACTIVITY_ID
+                + " AND " + DatabaseHelper.ACTIVITY_TABLE + "." + KEY_REGION_ID + " = " + opportunity + KEY_REGION_ID + " LIMIT 1) AS " + KEY_OPPORTUNITY_ACTIVITY_TITLE);
+        projectionMap.put(KEY_OPPORTUNITY_SUB_ACTIVITY_TITLE, "(SELECT " + KEY_SUB_ACTIVITY_TITLE + " FROM " + DatabaseHelper.SUB_ACTIVITY_TABLE
+                + " WHERE " + DatabaseHelper.SUB_ACTIVITY_TABLE + "." + KEY_SUB_ACTIVITY_ID + " = " + opportunity + KEY_OPPORTUNITY_SUB_ACTIVITY_ID
+                + " AND " + DatabaseHelper.SUB_ACTIVITY_TABLE + "." + KEY_REGION_ID + " = " + opportunity + KEY_REGION_ID + " LIMIT 1) AS " + KEY_OPPORTUNITY_SUB_ACTIVITY_TITLE);
+    }
+
+    /**
+     * Return uri scoped to region rather than the active region.
+     */
+    public static Uri forRegion(Uri uri, int region) {
+        return uri.buildUpon().appendQueryParameter(QUERY_REGION, String.valueOf(region)).build();
+    }
+
+    /**
+     * Return the URI of the occurrences starting in [start, end), in order of start time.
+     */
+    public static Uri occurrencesBetween(long start, long end) {
+        return CONTENT_URI_OCCURRENCES.buildUpon()
+                .appendQueryParameter(QUERY_START, String.valueOf(start))
+                .appendQueryParameter(QUERY_END, String.valueOf(end))
+                .build();
     }
 
     DatabaseHelper dbHelper;
+    private volatile boolean databaseOpened;
+
+    // Change notifications held back until the batch applying on this thread commits
+    private final ThreadLocal<Set<Uri>> batchNotifications = new ThreadLocal<Set<Uri>>();
+
+    private final Dictionary rooms = new Dictionary(DatabaseHelper.ROOM_TABLE, KEY_ROOM_ID, KEY_OPPORTUNITY_ROOM);
+    private final Dictionary days = new Dictionary(DatabaseHelper.DAY_TABLE, KEY_DAY_ID, KEY_OPPORTUNITY_DAY_OF_WEEK);
+    private final Dictionary categories = new Dictionary(DatabaseHelper.CATEGORY_TABLE, KEY_CATEGORY_ID, KEY_ACTIVITY_CATEGORY);
+
+    // Ids looked up inside a transaction may be of rows it added, so they go if it rolls back
+    private final SQLiteTransactionListener dictionaryRollback = new SQLiteTransactionListener() {
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onCommit() {
+        }
+
+        @Override
+        public void onRollback() {
+            rooms.clear();
+            days.clear();
+            categories.clear();
+        }
+    };
 
     @Override
     public boolean onCreate() {
+        // Runs at process start on the main thread, so leave opening the database to the first query
+        StartupTrace.beginSection("DataProvider.onCreate");
         Context context = getContext();
 
         dbHelper = new DatabaseHelper(context, DatabaseHelper.DATABASE_NAME, null, DatabaseHelper.DATABASE_VERSION);
 
+        StartupTrace.milestone("provider_created");
+        StartupTrace.endSection();
         return true;
     }
 
+    private SQLiteDatabase getDatabase() {
+        if (databaseOpened) {
+            return dbHelper.getWritableDatabase();
+        }
+        StartupTrace.beginSection("DataProvider.openDatabase");
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            databaseOpened = true;
+            if (dbHelper.installedSnapshot()) {
+                // The snapshot's occurrences were cleared, as they started on the day it was recorded
+                PreferenceManager.getDefaultSharedPreferences(getContext()).edit().remove(PREF_OCCURRENCE_HORIZON).commit();
+                extendOccurrences();
+            }
+            StartupTrace.milestone("database_opened");
+            return database;
+        } finally {
+            StartupTrace.endSection();
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
-        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        MetricsStore.checkMainThread("query", uri);
+        SQLiteDatabase database = getDatabase();
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         String defaultSortBy = "";
+        Uri notifyUri = uri;
+        // The region column of the rows listed, if they are scoped to a region
+        String regionColumn = null;
 
         // If this is a row query, limit the result set to the passed in row
         switch (uriMatcher.match(uri)) {
             case VENUES:
-                qb.setTables(DatabaseHelper.VENUE_TABLE);
+                qb.setTables(DatabaseHelper.VENUE_WITH_COUNTS);
+                regionColumn = DatabaseHelper.VENUE_REGION;
                 defaultSortBy = KEY_NAME;
                 break;
             case VENUE_ID:
-                qb.setTables(DatabaseHelper.VENUE_TABLE);
-                qb.appendWhere(KEY_ID + "=" + uri.getPathSegments().get(1));
+                qb.setTables(DatabaseHelper.VENUE_WITH_COUNTS);
+                qb.setProjectionMap(venueDetailProjectionMap);
+                qb.appendWhere(DatabaseHelper.VENUE_TABLE + "." + KEY_ID + "=" + uri.getPathSegments().get(1));
                 defaultSortBy = KEY_NAME;
                 break;
             case ACTIVITIES:
-                qb.setTables(DatabaseHelper.ACTIVITY_TABLE);
+                qb.setTables(DatabaseHelper.ACTIVITY_WITH_COUNTS);
+                regionColumn = DatabaseHelper.ACTIVITY_REGION;
                 defaultSortBy = KEY_ACTIVITY_TITLE;
                 break;
             case ACTIVITY_ID:
-                qb.setTables(DatabaseHelper.ACTIVITY_TABLE);
+                qb.setTables(DatabaseHelper.ACTIVITY_WITH_COUNTS);
                 qb.appendWhere(KEY_ID + "=" + uri.getPathSegments().get(1));
                 defaultSortBy = KEY_ACTIVITY_TITLE;
                 break;
             case SUB_ACTIVITIES:
-                qb.setTables(DatabaseHelper.SUB_ACTIVITY_TABLE);
+                qb.setTables(DatabaseHelper.SUB_ACTIVITY_WITH_COUNTS);
+                regionColumn = DatabaseHelper.SUB_ACTIVITY_REGION;
                 defaultSortBy = KEY_SUB_ACTIVITY_TITLE;
                 break;
             case SUB_ACTIVITY_ID:
-                qb.setTables(DatabaseHelper.SUB_ACTIVITY_TABLE);
+                qb.setTables(DatabaseHelper.SUB_ACTIVITY_WITH_COUNTS);
                 qb.appendWhere(KEY_ID + "=" + uri.getPathSegments().get(1));
                 defaultSortBy = KEY_SUB_ACTIVITY_TITLE;
                 break;
             case OPPORTUNITIES:
-                qb.setTables(DatabaseHelper.OPPORTUNITY_TABLE);
+                qb.setTables(DatabaseHelper.OPPORTUNITY_WITH_LOOKUPS);
+                qb.setProjectionMap(opportunityProjectionMap);
+                regionColumn = DatabaseHelper.OPPORTUNITY_REGION;
                 defaultSortBy = KEY_OPPORTUNITY_NAME;
                 break;
             case OPPORTUNITY_ID:
-                qb.setTables(DatabaseHelper.OPPORTUNITY_TABLE);
+                qb.setTables(DatabaseHelper.OPPORTUNITY_WITH_LOOKUPS);
+                qb.setProjectionMap(opportunityProjectionMap);
                 qb.appendWhere(KEY_ID + "=" + uri.getPathSegments().get(1));
                 defaultSortBy = KEY_OPPORTUNITY_NAME;
                 break;
+            case VENUE_OPPORTUNITIES:
+                qb.setTables(DatabaseHelper.OPPORTUNITY_WITH_LOOKUPS);
+                qb.setProjectionMap(opportunityProjectionMap);
+                qb.appendWhere(drillDown(KEY_OPPORTUNITY_VENUE_ID, KEY_VENUE_ID, DatabaseHelper.VENUE_TABLE, uri.getPathSegments().get(1)));
+                defaultSortBy = KEY_OPPORTUNITY_NAME;
+                notifyUri = CONTENT_URI_OPPORTUNITIES;
+                break;
+            case ACTIVITY_OPPORTUNITIES:
+                qb.setTables(DatabaseHelper.OPPORTUNITY_WITH_LOOKUPS);
+                qb.setProjectionMap(opportunityProjectionMap);
+                qb.appendWhere(drillDown(KEY_OPPORTUNITY_ACTIVITY_ID, KEY_ACTIVITY_ID, DatabaseHelper.ACTIVITY_TABLE, uri.getPathSegments().get(1)));
+                defaultSortBy = KEY_OPPORTUNITY_NAME;
+                notifyUri = CONTENT_URI_OPPORTUNITIES;
+                break;
+            case SUB_ACTIVITY_OPPORTUNITIES:
+                qb.setTables(DatabaseHelper.OPPORTUNITY_WITH_LOOKUPS);
+                qb.setProjectionMap(opportunityProjectionMap);
+                qb.appendWhere(drillDown(KEY_OPPORTUNITY_SUB_ACTIVITY_ID, KEY_SUB_ACTIVITY_ID, DatabaseHelper.SUB_ACTIVITY_TABLE, uri.getPathSegments().get(1)));
+                defaultSortBy = KEY_OPPORTUNITY_NAME;
+                notifyUri = CONTENT_URI_OPPORTUNITIES;
+                break;
+            case DAY_COUNTS:
+                qb.setTables(DatabaseHelper.DAY_COUNT_WITH_DAYS);
+                regionColumn = DatabaseHelper.DAY_COUNT_TABLE + "." + KEY_REGION_ID;
+                defaultSortBy = KEY_OPPORTUNITY_DAY_OF_WEEK;
+                break;
+            case OCCURRENCES: {
+                qb.setTables(DatabaseHelper.OCCURRENCES_WITH_OPPORTUNITIES);
+                qb.setProjectionMap(occurrenceProjectionMap);
+                regionColumn = DatabaseHelper.OCCURRENCE_REGION;
+
+                // Limit to a range of start times, a range scan on the start time index
+                String start = uri.getQueryParameter(QUERY_START);
+                String end = uri.getQueryParameter(QUERY_END);
+                String where = "";
+                if (start != null) {
+                    where = KEY_OCCURRENCE_START + ">=" + Long.parseLong(start);
+                }
+                if (end != null) {
+                    where += (where.length() > 0 ? " AND " : "") + KEY_OCCURRENCE_START + "<" + Long.parseLong(end);
+                }
+                if (where.length() > 0) {
+                    qb.appendWhere(where);
+                }
+                defaultSortBy = KEY_OCCURRENCE_START;
+                notifyUri = CONTENT_URI_OCCURRENCES;
+            }
+            break;
+            case SAVED_SEARCHES:
+                qb.setTables(DatabaseHelper.SAVED_SEARCH_TABLE);
+                defaultSortBy = KEY_SEARCH_NAME;
+                break;
+            case SAVED_SEARCH_ID:
+                qb.setTables(DatabaseHelper.SAVED_SEARCH_TABLE);
+                qb.appendWhere(KEY_ID + "=" + uri.getPathSegments().get(1));
+                break;
+            case SAVED_SEARCH_MATCHES:
+                qb.setTables(DatabaseHelper.MATCHES_WITH_OPPORTUNITIES);
+                qb.setProjectionMap(matchProjectionMap);
+                qb.appendWhere(DatabaseHelper.SEARCH_MATCH_TABLE + "." + KEY_MATCH_SEARCH_ID + "=" + uri.getPathSegments().get(1));
+                defaultSortBy = KEY_MATCH_FOUND + " DESC";
+                break;
             default: break;
         }
 
+        if (regionColumn != null) {
+            selection = DatabaseUtils.concatenateWhere(selection, regionColumn + "=" + regionOf(uri));
+        }
+
         // If no sort order is specified, sort by name
         String orderBy;
         if(TextUtils.isEmpty(sortOrder)) {
@@ -155,16 +519,43 @@ public class DataProvider extends ContentProvider {
                 null, null,
                 orderBy);
 
-        // Register the contexts ContentResolver to be notified if the cursor result set changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        // Register the contexts ContentResolver to be notified if the cursor result set changes.
+        // Drill down results change whenever the opportunities do.
+        c.setNotificationUri(getContext().getContentResolver(), notifyUri);
 
         // Return a cursor to the query result
         return c;
     }
 
+    /**
+     * The region uri is scoped to, see {@link #forRegion(Uri, int)}, or else the active region.
+     */
+    private int regionOf(Uri uri) {
+        String region = uri.getQueryParameter(QUERY_REGION);
+        if (region == null) {
+            return Regions.getActive(getContext());
+        }
+        try {
+            return Integer.parseInt(region);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid region " + region + " in " + uri);
+        }
+    }
+
+    /**
+     * The opportunities of the row with _id rowId in parentTable, matched on key and on the
+     * parent's own region, whichever region is active.
+     */
+    private static String drillDown(String column, String key, String parentTable, String rowId) {
+        String parent = " FROM " + parentTable + " WHERE " + KEY_ID + "=" + rowId + ")";
+        return column + "=(SELECT " + key + parent
+                + " AND " + DatabaseHelper.OPPORTUNITY_REGION + "=(SELECT " + KEY_REGION_ID + parent;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        MetricsStore.checkMainThread("insert", uri);
+        SQLiteDatabase database = getDatabase();
 
         switch (uriMatcher.match(uri)) {
             case VENUES:
@@ -175,7 +566,7 @@ public class DataProvider extends ContentProvider {
                 // Return a URI to the newly inserted row on success.
                 if(rowID > 0) {
                     Uri newUri = ContentUris.withAppendedId(CONTENT_URI_VENUES, rowID);
-                    getContext().getContentResolver().notifyChange(CONTENT_URI_VENUES, null);
+                    notifyChange(CONTENT_URI_VENUES);
                     return newUri;
                 }
             }
@@ -184,12 +575,12 @@ public class DataProvider extends ContentProvider {
             case ACTIVITIES:
             case ACTIVITY_ID: {
                 // Insert the new row. The call to the database.insert will return the row number if it is successful.
-                long rowID = database.insert(DatabaseHelper.ACTIVITY_TABLE, "activity", values);
+                long rowID = database.insert(DatabaseHelper.ACTIVITY_TABLE, "activity", encodeActivity(database, values));
 
                 // Return a URI to the newly inserted row on success.
                 if(rowID > 0) {
                     Uri newUri = ContentUris.withAppendedId(CONTENT_URI_ACTIVITIES, rowID);
-                    getContext().getContentResolver().notifyChange(CONTENT_URI_ACTIVITIES, null);
+                    notifyChange(CONTENT_URI_ACTIVITIES);
                     return newUri;
                 }
             }
@@ -203,7 +594,7 @@ public class DataProvider extends ContentProvider {
                 // Return a URI to the newly inserted row on success.
                 if(rowID > 0) {
                     Uri newUri = ContentUris.withAppendedId(CONTENT_URI_SUB_ACTIVITIES, rowID);
-                    getContext().getContentResolver().notifyChange(CONTENT_URI_SUB_ACTIVITIES, null);
+                    notifyChange(CONTENT_URI_SUB_ACTIVITIES);
                     return newUri;
                 }
             }
@@ -211,26 +602,134 @@ public class DataProvider extends ContentProvider {
 
             case OPPORTUNITIES:
             case OPPORTUNITY_ID: {
-                // Insert the new row. The call to the database.insert will return the row number if it is successful.
-                long rowID = database.insert(DatabaseHelper.OPPORTUNITY_TABLE, "opportunities", values);
+                // Insert the new row along with its occurrences. The call to the database.insert will return the row number if it is successful.
+                long rowID;
+                database.beginTransactionWithListener(dictionaryRollback);
+                try {
+                    rowID = database.insert(DatabaseHelper.OPPORTUNITY_TABLE, "opportunities", encodeOpportunity(database, values));
+                    if (rowID > 0) {
+                        replaceOccurrences(database, values.getAsString(KEY_OPPORTUNITY_ID),
+                                values.getAsString(KEY_REGION_ID),
+                                values.getAsString(KEY_OPPORTUNITY_DAY_OF_WEEK),
+                                values.getAsString(KEY_OPPORTUNITY_START_TIME),
+                                values.getAsString(KEY_OPPORTUNITY_END_TIME));
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
 
                 // Return a URI to the newly inserted row on success.
                 if(rowID > 0) {
                     Uri newUri = ContentUris.withAppendedId(CONTENT_URI_OPPORTUNITIES, rowID);
-                    getContext().getContentResolver().notifyChange(CONTENT_URI_OPPORTUNITIES, null);
+                    notifyChange(CONTENT_URI_OPPORTUNITIES);
+                    notifyDerivedChanged();
                     return newUri;
                 }
             }
             break;
+
+            case SAVED_SEARCHES:
+            case SAVED_SEARCH_ID: {
+                long rowID = database.insert(DatabaseHelper.SAVED_SEARCH_TABLE, null, values);
+                if (rowID > 0) {
+                    notifyChange(CONTENT_URI_SAVED_SEARCHES);
+                    return ContentUris.withAppendedId(CONTENT_URI_SAVED_SEARCHES, rowID);
+                }
+            }
+            break;
+
+            case SAVED_SEARCH_MATCHES:
+                if (insertMatch(database, uri.getPathSegments().get(1), values) > 0) {
+                    notifyChange(CONTENT_URI_SAVED_SEARCHES);
+                }
+                return uri;
         }
 
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Matches for one search are added in a single transaction, ignoring those already recorded.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (uriMatcher.match(uri) != SAVED_SEARCH_MATCHES) {
+            return super.bulkInsert(uri, values);
+        }
+        MetricsStore.checkMainThread("bulkInsert", uri);
+
+        SQLiteDatabase database = getDatabase();
+        String searchId = uri.getPathSegments().get(1);
+        int count = 0;
+        database.beginTransactionWithListener(dictionaryRollback);
+        try {
+            for (ContentValues value : values) {
+                if (insertMatch(database, searchId, value) > 0) {
+                    count++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (count > 0) {
+            notifyChange(CONTENT_URI_SAVED_SEARCHES);
+        }
+        return count;
+    }
+
+    /**
+     * Apply the operations in one transaction, sending each change notification once when it
+     * commits rather than once per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        MetricsStore.checkMainThread("applyBatch", operations.size() + " operations");
+        SQLiteDatabase database = getDatabase();
+        Set<Uri> notifications = new HashSet<Uri>();
+        batchNotifications.set(notifications);
+        ContentProviderResult[] results;
+        database.beginTransactionWithListener(dictionaryRollback);
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            batchNotifications.remove();
+        }
+
+        ContentResolver cr = getContext().getContentResolver();
+        for (Uri uri : notifications) {
+            cr.notifyChange(uri, null);
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = batchNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private static long insertMatch(SQLiteDatabase database, String searchId, ContentValues values) {
+        ContentValues match = new ContentValues(values);
+        match.put(KEY_MATCH_SEARCH_ID, searchId);
+        if (!match.containsKey(KEY_MATCH_FOUND)) {
+            match.put(KEY_MATCH_FOUND, System.currentTimeMillis());
+        }
+        return database.insertWithOnConflict(DatabaseHelper.SEARCH_MATCH_TABLE, null, match, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection,
                       String[] selectionArgs) {
-        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        MetricsStore.checkMainThread("update", uri);
+        SQLiteDatabase database = getDatabase();
 
         int count;
         switch (uriMatcher.match(uri)) {
@@ -246,12 +745,12 @@ public class DataProvider extends ContentProvider {
 
 
             case ACTIVITIES:
-                count = database.update(DatabaseHelper.ACTIVITY_TABLE, values, selection, selectionArgs);
+                count = database.update(DatabaseHelper.ACTIVITY_TABLE, encodeActivity(database, values), selection, selectionArgs);
                 break;
 
             case ACTIVITY_ID: {
                 String segment = uri.getPathSegments().get(1);
-                count = database.update(DatabaseHelper.ACTIVITY_TABLE, values, KEY_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""), selectionArgs);
+                count = database.update(DatabaseHelper.ACTIVITY_TABLE, encodeActivity(database, values), KEY_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""), selectionArgs);
             }
             break;
 
@@ -266,12 +765,37 @@ public class DataProvider extends ContentProvider {
             break;
 
             case OPPORTUNITIES:
-                count = database.update(DatabaseHelper.OPPORTUNITY_TABLE, values, selection, selectionArgs);
+                count = database.update(DatabaseHelper.OPPORTUNITY_TABLE, encodeOpportunity(database, values), selection, selectionArgs);
+                if (count > 0 && changesSchedule(values)) {
+                    rebuildOccurrences(database, selection, selectionArgs);
+                }
                 break;
 
             case OPPORTUNITY_ID: {
                 String segment = uri.getPathSegments().get(1);
-                count = database.update(DatabaseHelper.OPPORTUNITY_TABLE, values, KEY_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""), selectionArgs);
+                String where = KEY_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+                count = database.update(DatabaseHelper.OPPORTUNITY_TABLE, encodeOpportunity(database, values), where, selectionArgs);
+                if (count > 0 && changesSchedule(values)) {
+                    rebuildOccurrences(database, where, selectionArgs);
+                }
+            }
+            break;
+
+            case SAVED_SEARCHES:
+                count = database.update(DatabaseHelper.SAVED_SEARCH_TABLE, values, selection, selectionArgs);
+                break;
+
+            case SAVED_SEARCH_ID: {
+                String segment = uri.getPathSegments().get(1);
+                count = database.update(DatabaseHelper.SAVED_SEARCH_TABLE, values, KEY_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""), selectionArgs);
+            }
+            break;
+
+            // e.g. marking the matches seen, which updates the search's new_matches
+            case SAVED_SEARCH_MATCHES: {
+                String segment = uri.getPathSegments().get(1);
+                count = database.update(DatabaseHelper.SEARCH_MATCH_TABLE, values, KEY_MATCH_SEARCH_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""), selectionArgs);
+                notifyChange(CONTENT_URI_SAVED_SEARCHES);
             }
             break;
 
@@ -279,7 +803,10 @@ public class DataProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        if (isOpportunityUri(uri)) {
+            notifyDerivedChanged();
+        }
 
         return count;
     }
@@ -287,7 +814,8 @@ public class DataProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        MetricsStore.checkMainThread("delete", uri);
+        SQLiteDatabase database = getDatabase();
 
         int count;
         switch (uriMatcher.match(uri)) {
@@ -331,10 +859,30 @@ public class DataProvider extends ContentProvider {
             }
             break;
 
+            case SAVED_SEARCHES:
+                count = database.delete(DatabaseHelper.SAVED_SEARCH_TABLE, selection, selectionArgs);
+                break;
+
+            case SAVED_SEARCH_ID: {
+                String segment = uri.getPathSegments().get(1);
+                count = database.delete(DatabaseHelper.SAVED_SEARCH_TABLE, KEY_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""), selectionArgs);
+            }
+            break;
+
+            case SAVED_SEARCH_MATCHES: {
+                String segment = uri.getPathSegments().get(1);
+                count = database.delete(DatabaseHelper.SEARCH_MATCH_TABLE, KEY_MATCH_SEARCH_ID + "=" + segment + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : ""), selectionArgs);
+                notifyChange(CONTENT_URI_SAVED_SEARCHES);
+            }
+            break;
+
             default: throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        if (isOpportunityUri(uri)) {
+            notifyDerivedChanged();
+        }
 
         return count;
     }
@@ -350,21 +898,449 @@ public class DataProvider extends ContentProvider {
             case SUB_ACTIVITY_ID: return "vnd.android.cursor.item/vnd.com.xoverto.matchthecity.sub_activities";
             case OPPORTUNITIES: return "vnd.android.cursor.dir/vnd.com.xoverto.matchthecity.opportunities";
             case OPPORTUNITY_ID: return "vnd.android.cursor.item/vnd.com.xoverto.matchthecity.opportunities";
+            case VENUE_OPPORTUNITIES:
+            case ACTIVITY_OPPORTUNITIES:
+            case SUB_ACTIVITY_OPPORTUNITIES: return "vnd.android.cursor.dir/vnd.com.xoverto.matchthecity.opportunities";
+            case DAY_COUNTS: return "vnd.android.cursor.dir/vnd.com.xoverto.matchthecity.day_counts";
+            case OCCURRENCES: return "vnd.android.cursor.dir/vnd.com.xoverto.matchthecity.occurrences";
+            case SAVED_SEARCHES: return "vnd.android.cursor.dir/vnd.com.xoverto.matchthecity.saved_searches";
+            case SAVED_SEARCH_ID: return "vnd.android.cursor.item/vnd.com.xoverto.matchthecity.saved_searches";
+            case SAVED_SEARCH_MATCHES: return "vnd.android.cursor.dir/vnd.com.xoverto.matchthecity.opportunities";
             default: throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
     }
 
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        return uriMatcher.match(uri) == UriMatcher.NO_MATCH ? null : CursorExporter.getStreamTypes(mimeTypeFilter);
+    }
+
+    /**
+     * Stream the rows of uri as CSV or newline delimited JSON through a pipe, so an export of a
+     * whole table isn't limited by the cursor window or copied over binder row by row.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts) throws FileNotFoundException {
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null) {
+            throw new FileNotFoundException("Can't export " + uri + " as " + mimeTypeFilter);
+        }
+
+        String[] projection = opts != null ? opts.getStringArray(EXTRA_PROJECTION) : null;
+        String selection = opts != null ? opts.getString(EXTRA_SELECTION) : null;
+        String[] selectionArgs = opts != null ? opts.getStringArray(EXTRA_SELECTION_ARGS) : null;
+        Cursor cursor = query(uri, projection, selection, selectionArgs, null);
+        // The cursor is read and closed on the pipe's writer thread
+        ParcelFileDescriptor pipe = openPipeHelper(uri, types[0], opts, cursor, new CursorExporter());
+        return new AssetFileDescriptor(pipe, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    private boolean isOpportunityUri(Uri uri) {
+        int match = uriMatcher.match(uri);
+        return match == OPPORTUNITIES || match == OPPORTUNITY_ID;
+    }
+
+    // The count columns on these URIs and the occurrences are maintained from the opportunities table
+    private void notifyDerivedChanged() {
+        notifyChange(CONTENT_URI_VENUES);
+        notifyChange(CONTENT_URI_ACTIVITIES);
+        notifyChange(CONTENT_URI_SUB_ACTIVITIES);
+        notifyChange(CONTENT_URI_DAY_COUNTS);
+        notifyChange(CONTENT_URI_OCCURRENCES);
+        notifyChange(CONTENT_URI_SAVED_SEARCHES);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        MetricsStore.checkMainThread("call", method);
+        if (METHOD_EXTEND_OCCURRENCES.equals(method)) {
+            enforceCallerIsApp(method);
+            extendOccurrences();
+            return null;
+        }
+        if (METHOD_MAINTAIN.equals(method)) {
+            // A full VACUUM holds the database for seconds
+            enforceCallerIsApp(method);
+            return maintain(extras != null && extras.getBoolean(EXTRA_ANALYZE),
+                    extras != null && extras.getBoolean(EXTRA_QUICK_CHECK));
+        }
+        if (METHOD_GET_FEED_CURSOR.equals(method)) {
+            checkFeedExtras(method, extras);
+            return getFeedCursor(extras.getString(EXTRA_FEED), extras.getInt(EXTRA_REGION));
+        }
+        if (METHOD_SET_FEED_CURSOR.equals(method)) {
+            // A wrong cursor would make the next sync skip rows
+            enforceCallerIsApp(method);
+            checkFeedExtras(method, extras);
+            setFeedCursor(extras.getString(EXTRA_FEED), extras.getInt(EXTRA_REGION), extras.getString(EXTRA_CURSOR));
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * The provider is exported so other apps can read the lists, but the call methods that change
+     * the stored data are only for the app's own components.
+     */
+    private static void enforceCallerIsApp(String method) {
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException(method + " can only be called by " + AUTHORITY);
+        }
+    }
+
+    private static void checkFeedExtras(String method, Bundle extras) {
+        if (extras == null || extras.getString(EXTRA_FEED) == null || !extras.containsKey(EXTRA_REGION)) {
+            throw new IllegalArgumentException(method + " needs the " + EXTRA_FEED + " and " + EXTRA_REGION + " extras");
+        }
+    }
+
+    private Bundle getFeedCursor(String feed, int region) {
+        Bundle result = new Bundle();
+        Cursor c = getDatabase().query(DatabaseHelper.FEED_STATE_TABLE, new String[] { KEY_FEED_CURSOR },
+                KEY_FEED + "=? AND " + KEY_REGION_ID + "=?", new String[] { feed, String.valueOf(region) }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                result.putString(EXTRA_CURSOR, c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private void setFeedCursor(String feed, int region, String cursor) {
+        SQLiteDatabase database = getDatabase();
+        if (cursor == null) {
+            database.delete(DatabaseHelper.FEED_STATE_TABLE, KEY_FEED + "=? AND " + KEY_REGION_ID + "=?",
+                    new String[] { feed, String.valueOf(region) });
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(KEY_FEED, feed);
+        values.put(KEY_REGION_ID, region);
+        values.put(KEY_FEED_CURSOR, cursor);
+        database.insertWithOnConflict(DatabaseHelper.FEED_STATE_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // Copies of the values with the lookup columns replaced by their ids, leaving the caller's values as they were
+    private ContentValues encodeOpportunity(SQLiteDatabase database, ContentValues values) {
+        ContentValues encoded = new ContentValues(values);
+        rooms.encode(database, encoded);
+        days.encode(database, encoded);
+        return encoded;
+    }
+
+    private ContentValues encodeActivity(SQLiteDatabase database, ContentValues values) {
+        ContentValues encoded = new ContentValues(values);
+        categories.encode(database, encoded);
+        return encoded;
+    }
+
+    /**
+     * A lookup table of the distinct values of a column, with the ids already seen cached. Values
+     * are only ever added, until the table is dropped with the rest of the feed data on upgrade.
+     */
+    private static class Dictionary {
+        private final String table;
+        private final String idColumn;
+        private final String valueColumn;
+        private final HashMap<String, Long> ids = new HashMap<String, Long>();
+
+        Dictionary(String table, String idColumn, String valueColumn) {
+            this.table = table;
+            this.idColumn = idColumn;
+            this.valueColumn = valueColumn;
+        }
+
+        /**
+         * Replace the value column in values with the id of its value, adding it if new.
+         */
+        void encode(SQLiteDatabase database, ContentValues values) {
+            if (!values.containsKey(valueColumn)) {
+                return;
+            }
+            String value = values.getAsString(valueColumn);
+            values.remove(valueColumn);
+            if (value == null) {
+                values.putNull(idColumn);
+            } else {
+                values.put(idColumn, idOf(database, value));
+            }
+        }
+
+        private synchronized long idOf(SQLiteDatabase database, String value) {
+            Long id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+
+            Cursor c = database.query(table, new String[] { idColumn }, valueColumn + "=?", new String[] { value }, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    id = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (id == null) {
+                // Not cached until read back, as the insert may yet be rolled back with its transaction
+                ContentValues row = new ContentValues();
+                row.put(valueColumn, value);
+                return database.insert(table, null, row);
+            }
+            ids.put(value, id);
+            return id;
+        }
+
+        synchronized void clear() {
+            ids.clear();
+        }
+    }
+
+    private static boolean changesSchedule(ContentValues values) {
+        return values.containsKey(KEY_OPPORTUNITY_DAY_OF_WEEK)
+                || values.containsKey(KEY_OPPORTUNITY_START_TIME)
+                || values.containsKey(KEY_OPPORTUNITY_END_TIME);
+    }
+
+    private long getOccurrenceHorizon() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        long horizon = prefs.getLong(PREF_OCCURRENCE_HORIZON, 0);
+        if (horizon > 0) {
+            return horizon;
+        }
+        return OccurrenceExpander.addDays(System.currentTimeMillis(), OCCURRENCE_HORIZON_DAYS);
+    }
+
+    /**
+     * Replace the occurrences of one opportunity from the start of today up to the horizon.
+     */
+    private void replaceOccurrences(SQLiteDatabase database, String opportunityId, String region, String dayOfWeek, String startTime, String endTime) {
+        if (opportunityId == null || region == null) {
+            return;
+        }
+        database.delete(DatabaseHelper.OCCURRENCE_TABLE, KEY_OPPORTUNITY_ID + "=? AND " + KEY_REGION_ID + "=?", new String[] { opportunityId, region });
+        writeOccurrences(database, opportunityId, region, dayOfWeek, startTime, endTime,
+                OccurrenceExpander.startOfDay(System.currentTimeMillis()), getOccurrenceHorizon());
+    }
+
+    private void writeOccurrences(SQLiteDatabase database, String opportunityId, String region, String dayOfWeek, String startTime, String endTime, long from, long to) {
+        long[] times = OccurrenceExpander.expand(dayOfWeek, startTime, endTime, from, to);
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < times.length; i += 2) {
+            values.put(KEY_OPPORTUNITY_ID, opportunityId);
+            values.put(KEY_REGION_ID, region);
+            values.put(KEY_OCCURRENCE_START, times[i]);
+            values.put(KEY_OCCURRENCE_END, times[i + 1]);
+            database.insert(DatabaseHelper.OCCURRENCE_TABLE, null, values);
+        }
+    }
+
+    /**
+     * Regenerate the occurrences of the opportunities matching selection after their schedule changed.
+     */
+    private void rebuildOccurrences(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Cursor c = database.query(DatabaseHelper.OPPORTUNITY_WITH_LOOKUPS,
+                new String[] { KEY_OPPORTUNITY_ID, KEY_REGION_ID, KEY_OPPORTUNITY_DAY_OF_WEEK, KEY_OPPORTUNITY_START_TIME, KEY_OPPORTUNITY_END_TIME },
+                selection, selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                replaceOccurrences(database, c.getString(0), c.getString(1), c.getString(2), c.getString(3), c.getString(4));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Drop the occurrences that have finished and add those between the current horizon and the
+     * rolling horizon. Only does any work once a day.
+     */
+    private void extendOccurrences() {
+        long now = System.currentTimeMillis();
+        long today = OccurrenceExpander.startOfDay(now);
+        long target = OccurrenceExpander.addDays(now, OCCURRENCE_HORIZON_DAYS);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        long horizon = prefs.getLong(PREF_OCCURRENCE_HORIZON, 0);
+        if (horizon >= target) {
+            return;
+        }
+        long from = horizon > today ? horizon : today;
+
+        SQLiteDatabase database = getDatabase();
+        database.beginTransaction();
+        try {
+            database.delete(DatabaseHelper.OCCURRENCE_TABLE, KEY_OCCURRENCE_START + "<? AND " + KEY_OCCURRENCE_END + "<?",
+                    new String[] { String.valueOf(today), String.valueOf(today) });
+            // Clears anything already past the point we extend from, so a lost horizon can't duplicate occurrences
+            database.delete(DatabaseHelper.OCCURRENCE_TABLE, KEY_OCCURRENCE_START + ">=?", new String[] { String.valueOf(from) });
+
+            Cursor c = database.query(DatabaseHelper.OPPORTUNITY_WITH_LOOKUPS,
+                    new String[] { KEY_OPPORTUNITY_ID, KEY_REGION_ID, KEY_OPPORTUNITY_DAY_OF_WEEK, KEY_OPPORTUNITY_START_TIME, KEY_OPPORTUNITY_END_TIME },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    writeOccurrences(database, c.getString(0), c.getString(1), c.getString(2), c.getString(3), c.getString(4), from, target);
+                }
+            } finally {
+                c.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        prefs.edit().putLong(PREF_OCCURRENCE_HORIZON, target).commit();
+        notifyChange(CONTENT_URI_OCCURRENCES);
+    }
+
+    /**
+     * Reclaim the free pages left by the sync rewriting rows, switching the database to incremental
+     * auto vacuum with one full VACUUM the first time. Sizes and time taken go to {@link MetricsStore}.
+     */
+    private Bundle maintain(boolean analyze, boolean quickCheck) {
+        SQLiteDatabase database = getDatabase();
+        long start = SystemClock.elapsedRealtime();
+        long pageSize = DatabaseUtils.longForQuery(database, "PRAGMA page_size", null);
+        long pagesBefore = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+        long freeBefore = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+
+        String vacuum = "none";
+        if (DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null) != DatabaseHelper.AUTO_VACUUM_INCREMENTAL) {
+            // Only takes effect on a VACUUM, which rewrites the whole file
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            database.execSQL("VACUUM");
+            vacuum = "full";
+        } else if (freeBefore > 0) {
+            runPragma(database, "PRAGMA incremental_vacuum");
+            vacuum = "incremental";
+        }
+
+        if (analyze) {
+            database.execSQL("ANALYZE");
+        }
+
+        Bundle result = new Bundle();
+        String check = null;
+        if (quickCheck) {
+            check = runPragma(database, "PRAGMA quick_check");
+            if (!"ok".equals(check)) {
+                Log.e(DatabaseHelper.TAG, "Database quick check failed: " + check);
+            }
+            result.putString(EXTRA_QUICK_CHECK, check);
+        }
+
+        long pagesAfter = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+        long freeAfter = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        long duration = SystemClock.elapsedRealtime() - start;
+        Log.d(DatabaseHelper.TAG, "Maintenance took " + duration + "ms, " + pagesBefore * pageSize + " to " + pagesAfter * pageSize + " bytes");
+
+        try {
+            JSONObject fields = new JSONObject();
+            fields.put("size_before", pagesBefore * pageSize);
+            fields.put("size_after", pagesAfter * pageSize);
+            fields.put("free_pages_before", freeBefore);
+            fields.put("free_pages_after", freeAfter);
+            fields.put("vacuum", vacuum);
+            fields.put("analyze", analyze);
+            if (check != null) {
+                fields.put("quick_check", check);
+            }
+            fields.put("duration_ms", duration);
+            MetricsStore.record("db_maintenance", fields);
+        } catch (JSONException e) {
+            // Not recorded
+        }
+        return result;
+    }
+
+    // Run a pragma that may return rows, returning the first column of the first row
+    private static String runPragma(SQLiteDatabase database, String pragma) {
+        Cursor c = database.rawQuery(pragma, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
     // Helper class for opening, creating and managing database version control
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    static class DatabaseHelper extends SQLiteOpenHelper {
         private static final String TAG = "VenueProvider";
-        private static final String DATABASE_NAME = "venues.db";
-        private static final int DATABASE_VERSION = 3;
+        static final String DATABASE_NAME = "venues.db";
+        private static final int DATABASE_VERSION = 14;
+        // Versions that changed the saved search tables, which are migrated rather than dropped
+        private static final int VERSION_SEARCH_MATCHES = 8;
+        private static final int VERSION_FEED_REGIONS = 10;
+        private static final int VERSION_MATCH_REGIONS = 14;
+        // Set by onUpgrade until DataUpdateService has replayed the archived feeds into the new tables
+        static final String PREF_REPLAY_PENDING = "replay_pending";
+        private static final int AUTO_VACUUM_INCREMENTAL = 2;
+        private static final String SNAPSHOT_ASSET = "databases/" + DATABASE_NAME + ".gz";
         private static final String VENUE_TABLE = "venues";
         private static final String ACTIVITY_TABLE = "activities";
         private static final String SUB_ACTIVITY_TABLE = "sub_activities";
         private static final String OPPORTUNITY_TABLE = "opportunities";
+        private static final String VENUE_COUNT_TABLE = "venue_counts";
+        private static final String ACTIVITY_COUNT_TABLE = "activity_counts";
+        private static final String SUB_ACTIVITY_COUNT_TABLE = "sub_activity_counts";
+        private static final String DAY_COUNT_TABLE = "day_counts";
+        private static final String OCCURRENCE_TABLE = "occurrences";
+        private static final String ROOM_TABLE = "rooms";
+        private static final String DAY_TABLE = "days";
+        private static final String CATEGORY_TABLE = "categories";
+        private static final String FEED_STATE_TABLE = "feed_state";
+
+        private static final String SAVED_SEARCH_TABLE = "saved_searches";
+        private static final String SEARCH_MATCH_TABLE = "search_matches";
+
+        // Tables emptied in a snapshot: those of the device it was recorded on rather than of the
+        // feeds, and the occurrences, dated from the day it was recorded
+        private static final String[] SNAPSHOT_CLEARED_TABLES = { SAVED_SEARCH_TABLE, SEARCH_MATCH_TABLE, FEED_STATE_TABLE, OCCURRENCE_TABLE };
+
+        // The room and day of week labels joined back in by id
+        private static final String OPPORTUNITY_LOOKUPS = " LEFT OUTER JOIN " + ROOM_TABLE + " USING (" + KEY_ROOM_ID + ")"
+                + " LEFT OUTER JOIN " + DAY_TABLE + " USING (" + KEY_DAY_ID + ")";
+
+        private static final String OPPORTUNITY_WITH_LOOKUPS = OPPORTUNITY_TABLE + OPPORTUNITY_LOOKUPS;
+
+        // Opportunity ids are only unique within a region, so occurrences and matches join on both
+        private static final String MATCHES_WITH_OPPORTUNITIES = SEARCH_MATCH_TABLE + " JOIN " + OPPORTUNITY_TABLE
+                + " ON (" + SEARCH_MATCH_TABLE + "." + KEY_OPPORTUNITY_ID + " = " + OPPORTUNITY_TABLE + "." + KEY_OPPORTUNITY_ID
+                + " AND " + SEARCH_MATCH_TABLE + "." + KEY_REGION_ID + " = " + OPPORTUNITY_TABLE + "." + KEY_REGION_ID + ")"
+                + OPPORTUNITY_LOOKUPS;
+
+        // CROSS JOIN keeps occurrences as the outer loop, so the time range is read in order from
+        // occurrences_start rather than the whole region being sorted
+        private static final String OCCURRENCES_WITH_OPPORTUNITIES = OCCURRENCE_TABLE + " CROSS JOIN " + OPPORTUNITY_TABLE
+                + " ON (" + OCCURRENCE_TABLE + "." + KEY_OPPORTUNITY_ID + " = " + OPPORTUNITY_TABLE + "." + KEY_OPPORTUNITY_ID
+                + " AND " + OCCURRENCE_TABLE + "." + KEY_REGION_ID + " = " + OPPORTUNITY_TABLE + "." + KEY_REGION_ID + ")"
+                + OPPORTUNITY_LOOKUPS;
+
+        private static final String DAY_COUNT_WITH_DAYS = DAY_COUNT_TABLE + " JOIN " + DAY_TABLE + " USING (" + KEY_DAY_ID + ")";
+
+        private static final String FEED_TABLE_REGION = KEY_REGION_ID + " INTEGER, ";
+        private static final String VENUE_REGION = VENUE_TABLE + "." + KEY_REGION_ID;
+        private static final String ACTIVITY_REGION = ACTIVITY_TABLE + "." + KEY_REGION_ID;
+        private static final String SUB_ACTIVITY_REGION = SUB_ACTIVITY_TABLE + "." + KEY_REGION_ID;
+        private static final String OPPORTUNITY_REGION = OPPORTUNITY_TABLE + "." + KEY_REGION_ID;
+        private static final String OCCURRENCE_REGION = OCCURRENCE_TABLE + "." + KEY_REGION_ID;
+
+        // Each table joined with its materialized opportunity count
+        private static final String VENUE_WITH_COUNTS = VENUE_TABLE + " LEFT OUTER JOIN " + VENUE_COUNT_TABLE
+                + " ON (" + VENUE_TABLE + "." + KEY_REGION_ID + " = " + VENUE_COUNT_TABLE + "." + KEY_REGION_ID
+                + " AND " + VENUE_TABLE + "." + KEY_VENUE_ID + " = " + VENUE_COUNT_TABLE + "." + KEY_COUNT_KEY + ")";
+        private static final String ACTIVITY_WITH_COUNTS = ACTIVITY_TABLE + " LEFT OUTER JOIN " + ACTIVITY_COUNT_TABLE
+                + " ON (" + ACTIVITY_TABLE + "." + KEY_REGION_ID + " = " + ACTIVITY_COUNT_TABLE + "." + KEY_REGION_ID
+                + " AND " + ACTIVITY_TABLE + "." + KEY_ACTIVITY_ID + " = " + ACTIVITY_COUNT_TABLE + "." + KEY_COUNT_KEY + ")"
+                + " LEFT OUTER JOIN " + CATEGORY_TABLE + " USING (" + KEY_CATEGORY_ID + ")";
+        private static final String SUB_ACTIVITY_WITH_COUNTS = SUB_ACTIVITY_TABLE + " LEFT OUTER JOIN " + SUB_ACTIVITY_COUNT_TABLE
+                + " ON (" + SUB_ACTIVITY_TABLE + "." + KEY_REGION_ID + " = " + SUB_ACTIVITY_COUNT_TABLE + "." + KEY_REGION_ID
+                + " AND " + SUB_ACTIVITY_TABLE + "." + KEY_SUB_ACTIVITY_ID + " = " + SUB_ACTIVITY_COUNT_TABLE + "." + KEY_COUNT_KEY + ")";
         private static final String DATABASE_CREATE_VENUE = "create table " + VENUE_TABLE + " ("
                 + KEY_ID + " integer primary key autoincrement, "
+                + FEED_TABLE_REGION
                 + KEY_VENUE_ID + " TEXT,"
                 + KEY_NAME + " TEXT, "
                 + KEY_UPDATED + " INTEGER, "
@@ -378,53 +1354,411 @@ public class DataProvider extends ContentProvider {
 
         private static final String DATABASE_CREATE_ACTIVITY =  "create table " + ACTIVITY_TABLE + " ("
                 + KEY_ID + " integer primary key autoincrement, "
+                + FEED_TABLE_REGION
                 + KEY_ACTIVITY_ID + " INTEGER, "
                 + KEY_ACTIVITY_TITLE + " TEXT, "
-                + KEY_ACTIVITY_CATEGORY + " TEXT);";
+                + KEY_CATEGORY_ID + " INTEGER);";
 
         private static final String DATABASE_CREATE_SUB_ACTIVITY =  "create table " + SUB_ACTIVITY_TABLE + " ("
                 + KEY_ID + " integer primary key autoincrement, "
+                + FEED_TABLE_REGION
                 + KEY_SUB_ACTIVITY_ID + " INTEGER, "
                 + KEY_SUB_ACTIVITY_TITLE + " TEXT, "
                 + KEY_SUB_ACTIVITY_ACTIVITY_ID + " INTEGER);";
 
         private static final String DATABASE_CREATE_OPPORTUNITY =  "create table " + OPPORTUNITY_TABLE + " ("
                 + KEY_ID + " integer primary key autoincrement, "
+                + FEED_TABLE_REGION
                 + KEY_OPPORTUNITY_ID + " INTEGER, "
                 + KEY_OPPORTUNITY_NAME + " TEXT, "
                 + KEY_OPPORTUNITY_DESCRIPTION + " TEXT, "
                 + KEY_OPPORTUNITY_ACTIVITY_ID + " INTEGER, "
                 + KEY_OPPORTUNITY_SUB_ACTIVITY_ID + " INTEGER, "
                 + KEY_OPPORTUNITY_VENUE_ID + " INTEGER, "
-                + KEY_OPPORTUNITY_ROOM + " TEXT, "
+                + KEY_ROOM_ID + " INTEGER, "
                 + KEY_OPPORTUNITY_START_TIME + " TEXT, "
                 + KEY_OPPORTUNITY_END_TIME + " TEXT, "
-                + KEY_OPPORTUNITY_DAY_OF_WEEK + " TEXT);";
+                + KEY_DAY_ID + " INTEGER);";
+
+        private static final String[] DATABASE_CREATE_LOOKUPS = {
+                createLookupTable(ROOM_TABLE, KEY_ROOM_ID, KEY_OPPORTUNITY_ROOM),
+                createLookupTable(DAY_TABLE, KEY_DAY_ID, KEY_OPPORTUNITY_DAY_OF_WEEK),
+                createLookupTable(CATEGORY_TABLE, KEY_CATEGORY_ID, KEY_ACTIVITY_CATEGORY)
+        };
+
+        private static final String DATABASE_CREATE_OCCURRENCE =  "create table " + OCCURRENCE_TABLE + " ("
+                + KEY_ID + " integer primary key autoincrement, "
+                + FEED_TABLE_REGION
+                + KEY_OPPORTUNITY_ID + " INTEGER, "
+                + KEY_OCCURRENCE_START + " INTEGER, "
+                + KEY_OCCURRENCE_END + " INTEGER);";
+
+        // Occurrences follow their opportunity when it is deleted or its id or region changes
+        private static final String[] DATABASE_CREATE_OCCURRENCE_TRIGGERS = {
+                "create trigger " + OCCURRENCE_TABLE + "_delete after delete on " + OPPORTUNITY_TABLE
+                        + " begin delete from " + OCCURRENCE_TABLE + " where " + KEY_OPPORTUNITY_ID + " = OLD." + KEY_OPPORTUNITY_ID
+                        + " AND " + KEY_REGION_ID + " = OLD." + KEY_REGION_ID + "; end;",
+                "create trigger " + OCCURRENCE_TABLE + "_update after update of " + KEY_OPPORTUNITY_ID + ", " + KEY_REGION_ID + " on " + OPPORTUNITY_TABLE
+                        + " when OLD." + KEY_OPPORTUNITY_ID + " IS NOT NEW." + KEY_OPPORTUNITY_ID + " OR OLD." + KEY_REGION_ID + " IS NOT NEW." + KEY_REGION_ID
+                        + " begin update " + OCCURRENCE_TABLE + " set " + KEY_OPPORTUNITY_ID + " = NEW." + KEY_OPPORTUNITY_ID + ", " + KEY_REGION_ID + " = NEW." + KEY_REGION_ID
+                        + " where " + KEY_OPPORTUNITY_ID + " = OLD." + KEY_OPPORTUNITY_ID + " AND " + KEY_REGION_ID + " = OLD." + KEY_REGION_ID + "; end;"
+        };
+
+        private static final String DATABASE_CREATE_FEED_STATE = "create table " + FEED_STATE_TABLE + " ("
+                + KEY_FEED + " TEXT NOT NULL, "
+                + KEY_REGION_ID + " INTEGER NOT NULL, "
+                + KEY_FEED_CURSOR + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + KEY_FEED + ", " + KEY_REGION_ID + "));";
+
+        // Saved searches are the user's own data, so unlike the feed tables they are created only if
+        // missing and are kept across upgrades. new_matches counts the matches not yet seen.
+        private static final String[] DATABASE_CREATE_SAVED_SEARCHES = {
+                "create table if not exists " + SAVED_SEARCH_TABLE + " ("
+                        + KEY_ID + " integer primary key autoincrement, "
+                        + KEY_SEARCH_KIND + " TEXT NOT NULL, "
+                        + KEY_SEARCH_NAME + " TEXT, "
+                        + KEY_SEARCH_ACTIVITY_ID + " INTEGER, "
+                        + KEY_SEARCH_SUB_ACTIVITY_ID + " INTEGER, "
+                        + KEY_SEARCH_VENUE_ID + " INTEGER, "
+                        + KEY_SEARCH_DAY_OF_WEEK + " TEXT, "
+                        + KEY_SEARCH_KEYWORDS + " TEXT, "
+                        + KEY_SEARCH_NEW_MATCHES + " INTEGER NOT NULL DEFAULT 0);",
+                createMatchTable(SEARCH_MATCH_TABLE),
+                "create index if not exists search_matches_found on " + SEARCH_MATCH_TABLE + " (" + KEY_MATCH_SEARCH_ID + ", " + KEY_MATCH_FOUND + ");",
+                "create index if not exists search_matches_opportunity_id on " + SEARCH_MATCH_TABLE + " (" + KEY_OPPORTUNITY_ID + ", " + KEY_REGION_ID + ");",
+                "create trigger if not exists " + SEARCH_MATCH_TABLE + "_insert after insert on " + SEARCH_MATCH_TABLE
+                        + " when NEW." + KEY_MATCH_SEEN + " = 0"
+                        + " begin update " + SAVED_SEARCH_TABLE + " set " + KEY_SEARCH_NEW_MATCHES + " = " + KEY_SEARCH_NEW_MATCHES + " + 1"
+                        + " where " + KEY_ID + " = NEW." + KEY_MATCH_SEARCH_ID + "; end;",
+                "create trigger if not exists " + SEARCH_MATCH_TABLE + "_update after update of " + KEY_MATCH_SEEN + " on " + SEARCH_MATCH_TABLE
+                        + " begin update " + SAVED_SEARCH_TABLE + " set " + KEY_SEARCH_NEW_MATCHES + " = " + KEY_SEARCH_NEW_MATCHES
+                        + " - (OLD." + KEY_MATCH_SEEN + " = 0) + (NEW." + KEY_MATCH_SEEN + " = 0)"
+                        + " where " + KEY_ID + " = NEW." + KEY_MATCH_SEARCH_ID + "; end;",
+                "create trigger if not exists " + SEARCH_MATCH_TABLE + "_delete after delete on " + SEARCH_MATCH_TABLE
+                        + " when OLD." + KEY_MATCH_SEEN + " = 0"
+                        + " begin update " + SAVED_SEARCH_TABLE + " set " + KEY_SEARCH_NEW_MATCHES + " = " + KEY_SEARCH_NEW_MATCHES + " - 1"
+                        + " where " + KEY_ID + " = OLD." + KEY_MATCH_SEARCH_ID + "; end;",
+                "create trigger if not exists " + SAVED_SEARCH_TABLE + "_delete after delete on " + SAVED_SEARCH_TABLE
+                        + " begin delete from " + SEARCH_MATCH_TABLE + " where " + KEY_MATCH_SEARCH_ID + " = OLD." + KEY_ID + "; end;"
+        };
+
+        // Matches go when their opportunity is removed from the feed (but not when the table is dropped on upgrade)
+        private static final String DATABASE_CREATE_MATCH_TRIGGER = "create trigger " + SEARCH_MATCH_TABLE + "_opportunity_delete after delete on " + OPPORTUNITY_TABLE
+                + " begin delete from " + SEARCH_MATCH_TABLE + " where " + KEY_OPPORTUNITY_ID + " = OLD." + KEY_OPPORTUNITY_ID
+                + " AND " + KEY_REGION_ID + " = OLD." + KEY_REGION_ID + "; end;";
+
+        // Count tables are keyed by region and a key with the same affinity as the column it joins
+        // to (venue_id is TEXT on venues), so both the joins and the trigger lookups use the
+        // primary key index
+        private static final String[] DATABASE_CREATE_COUNTS = {
+                createCountTable(VENUE_COUNT_TABLE, KEY_COUNT_KEY, "TEXT"),
+                createCountTable(ACTIVITY_COUNT_TABLE, KEY_COUNT_KEY, "NUMERIC"),
+                createCountTable(SUB_ACTIVITY_COUNT_TABLE, KEY_COUNT_KEY, "NUMERIC"),
+                createCountTable(DAY_COUNT_TABLE, KEY_DAY_ID, "INTEGER")
+        };
+
+        // Triggers keeping the count tables up to date as opportunities are inserted, updated and deleted
+        private static final String[] DATABASE_CREATE_COUNT_TRIGGERS = {
+                createCountTriggers(VENUE_COUNT_TABLE, KEY_COUNT_KEY, KEY_OPPORTUNITY_VENUE_ID, true),
+                createCountTriggers(ACTIVITY_COUNT_TABLE, KEY_COUNT_KEY, KEY_OPPORTUNITY_ACTIVITY_ID, false),
+                createCountTriggers(SUB_ACTIVITY_COUNT_TABLE, KEY_COUNT_KEY, KEY_OPPORTUNITY_SUB_ACTIVITY_ID, false),
+                createCountTriggers(DAY_COUNT_TABLE, KEY_DAY_ID, KEY_DAY_ID, false)
+        };
+
+        // Indexes for the natural key lookups made during sync and by the list screens, and for
+        // the default sort order of each table. The id lookups are made within a region, so their
+        // indexes carry the region before the sort column.
+        private static final String[] DATABASE_CREATE_INDEXES = {
+                // Venues are upserted by id, which is unique within a region
+                "create unique index venues_venue_id on " + VENUE_TABLE + " (" + KEY_VENUE_ID + ", " + KEY_REGION_ID + ");",
+                "create index venues_region on " + VENUE_TABLE + " (" + KEY_REGION_ID + ", " + KEY_NAME + ");",
+                "create index activities_activity_id on " + ACTIVITY_TABLE + " (" + KEY_ACTIVITY_ID + ", " + KEY_REGION_ID + ", " + KEY_ACTIVITY_TITLE + ");",
+                "create index activities_region on " + ACTIVITY_TABLE + " (" + KEY_REGION_ID + ", " + KEY_ACTIVITY_TITLE + ");",
+                "create index sub_activities_sub_activity_id on " + SUB_ACTIVITY_TABLE + " (" + KEY_SUB_ACTIVITY_ID + ", " + KEY_REGION_ID + ", " + KEY_SUB_ACTIVITY_TITLE + ");",
+                "create index sub_activities_region on " + SUB_ACTIVITY_TABLE + " (" + KEY_REGION_ID + ", " + KEY_SUB_ACTIVITY_TITLE + ");",
+                "create index opportunities_opportunity_id on " + OPPORTUNITY_TABLE + " (" + KEY_OPPORTUNITY_ID + ", " + KEY_REGION_ID + ", " + KEY_OPPORTUNITY_NAME + ");",
+                "create index opportunities_region on " + OPPORTUNITY_TABLE + " (" + KEY_REGION_ID + ", " + KEY_OPPORTUNITY_NAME + ");",
+                "create index opportunities_venue_id on " + OPPORTUNITY_TABLE + " (" + KEY_OPPORTUNITY_VENUE_ID + ", " + KEY_OPPORTUNITY_NAME + ");",
+                "create index opportunities_activity_id on " + OPPORTUNITY_TABLE + " (" + KEY_OPPORTUNITY_ACTIVITY_ID + ", " + KEY_OPPORTUNITY_NAME + ");",
+                "create index opportunities_sub_activity_id on " + OPPORTUNITY_TABLE + " (" + KEY_OPPORTUNITY_SUB_ACTIVITY_ID + ", " + KEY_OPPORTUNITY_NAME + ");",
+                "create index occurrences_start on " + OCCURRENCE_TABLE + " (" + KEY_REGION_ID + ", " + KEY_OCCURRENCE_START + ");",
+                "create index occurrences_opportunity_id on " + OCCURRENCE_TABLE + " (" + KEY_OPPORTUNITY_ID + ", " + KEY_REGION_ID + ");"
+        };
+
+        // The queries the app makes: table, selection and the default sort for that table.
+        // QueryPlanTest checks each of these is answered from an index.
+        static final String[][] TYPICAL_QUERIES = {
+                { VENUE_WITH_COUNTS, VENUE_REGION + "=?", KEY_NAME },
+                { VENUE_WITH_COUNTS, KEY_VENUE_ID + "=? AND " + VENUE_REGION + "=?", KEY_NAME },
+                { ACTIVITY_WITH_COUNTS, ACTIVITY_REGION + "=?", KEY_ACTIVITY_TITLE },
+                { ACTIVITY_WITH_COUNTS, KEY_ACTIVITY_ID + "=? AND " + ACTIVITY_REGION + "=?", KEY_ACTIVITY_TITLE },
+                { SUB_ACTIVITY_WITH_COUNTS, SUB_ACTIVITY_REGION + "=?", KEY_SUB_ACTIVITY_TITLE },
+                { SUB_ACTIVITY_WITH_COUNTS, KEY_SUB_ACTIVITY_ID + "=? AND " + SUB_ACTIVITY_REGION + "=?", KEY_SUB_ACTIVITY_TITLE },
+                { OPPORTUNITY_WITH_LOOKUPS, OPPORTUNITY_REGION + "=?", KEY_OPPORTUNITY_NAME },
+                { OPPORTUNITY_WITH_LOOKUPS, KEY_OPPORTUNITY_ID + "=? AND " + OPPORTUNITY_REGION + "=?", KEY_OPPORTUNITY_NAME },
+                { OPPORTUNITY_WITH_LOOKUPS, KEY_OPPORTUNITY_VENUE_ID + "=? AND " + OPPORTUNITY_REGION + "=?", KEY_OPPORTUNITY_NAME },
+                { OPPORTUNITY_WITH_LOOKUPS, KEY_OPPORTUNITY_ACTIVITY_ID + "=? AND " + OPPORTUNITY_REGION + "=?", KEY_OPPORTUNITY_NAME },
+                { OPPORTUNITY_WITH_LOOKUPS, KEY_OPPORTUNITY_SUB_ACTIVITY_ID + "=? AND " + OPPORTUNITY_REGION + "=?", KEY_OPPORTUNITY_NAME },
+                { MATCHES_WITH_OPPORTUNITIES, SEARCH_MATCH_TABLE + "." + KEY_MATCH_SEARCH_ID + "=?", KEY_MATCH_FOUND + " DESC" },
+                { OCCURRENCES_WITH_OPPORTUNITIES, KEY_OCCURRENCE_START + ">=? AND " + KEY_OCCURRENCE_START + "<? AND " + OCCURRENCE_REGION + "=?", KEY_OCCURRENCE_START }
+        };
 
         // The underlying database
         private SQLiteDatabase carParkDB;
 
+        private final Context context;
+        private boolean snapshotChecked;
+        private boolean snapshotInstalled;
+
         public DatabaseHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
 
             super(context, name, factory, version);
+            this.context = context;
+        }
+
+        @Override
+        public synchronized SQLiteDatabase getWritableDatabase() {
+            installSnapshotIfNeeded();
+            return super.getWritableDatabase();
+        }
+
+        @Override
+        public synchronized SQLiteDatabase getReadableDatabase() {
+            installSnapshotIfNeeded();
+            return super.getReadableDatabase();
+        }
+
+        /**
+         * On first open, copy the prebuilt database snapshot packaged with the build (if any) into
+         * place so the lists have content before the first sync. The snapshot carries its own
+         * schema version, so an out of date snapshot is upgraded like any other database. The saved
+         * searches and sync state of the device it was recorded on are cleared first, as are the
+         * occurrences, which the provider regenerates from today once the database is open.
+         */
+        private void installSnapshotIfNeeded() {
+            if (snapshotChecked) {
+                return;
+            }
+            snapshotChecked = true;
+
+            File database = context.getDatabasePath(DATABASE_NAME);
+            if (database.exists()) {
+                return;
+            }
+
+            File temp = new File(database.getPath() + ".tmp");
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                in = new GZIPInputStream(context.getAssets().open(SNAPSHOT_ASSET), 8192);
+                database.getParentFile().mkdirs();
+                out = new FileOutputStream(temp);
+
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.close();
+                out = null;
+
+                if (!clearSnapshotTables(temp)) {
+                    Log.w(TAG, "Database snapshot unreadable, not installed");
+                } else if (!temp.renameTo(database)) {
+                    Log.w(TAG, "Unable to install database snapshot");
+                } else {
+                    snapshotInstalled = true;
+                }
+            } catch (FileNotFoundException e) {
+                // No snapshot in this build, onCreate will build an empty database
+            } catch (IOException e) {
+                Log.w(TAG, "Database snapshot copy failed", e);
+            } finally {
+                closeQuietly(in);
+                closeQuietly(out);
+                temp.delete();
+            }
+        }
+
+        /**
+         * Whether this open installed the snapshot, so the occurrences need generating.
+         */
+        synchronized boolean installedSnapshot() {
+            return snapshotInstalled;
+        }
+
+        // False if file isn't a database that can be opened
+        private static boolean clearSnapshotTables(File file) {
+            SQLiteDatabase db;
+            try {
+                db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+            } catch (SQLiteException e) {
+                return false;
+            }
+            try {
+                for (String table : SNAPSHOT_CLEARED_TABLES) {
+                    // Older snapshots may predate some of them
+                    if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE type='table' AND name=?", new String[] { table }) > 0) {
+                        db.delete(table, null, null);
+                    }
+                }
+                return true;
+            } catch (SQLiteException e) {
+                return false;
+            } finally {
+                db.close();
+            }
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL(DATABASE_CREATE_VENUE);
-            db.execSQL(DATABASE_CREATE_ACTIVITY);
-            db.execSQL(DATABASE_CREATE_SUB_ACTIVITY);
-            db.execSQL(DATABASE_CREATE_OPPORTUNITY);
+            for (String statement : createStatements()) {
+                db.execSQL(statement);
+            }
+        }
+
+        /**
+         * The statements creating the schema, one per execSQL, in order.
+         */
+        static List<String> createStatements() {
+            List<String> statements = new ArrayList<String>();
+            // Takes effect for a new file as the first table is created; an existing one is switched by maintain()
+            statements.add("PRAGMA auto_vacuum = INCREMENTAL");
+            statements.add(DATABASE_CREATE_VENUE);
+            statements.add(DATABASE_CREATE_ACTIVITY);
+            statements.add(DATABASE_CREATE_SUB_ACTIVITY);
+            statements.add(DATABASE_CREATE_OPPORTUNITY);
+            statements.add(DATABASE_CREATE_OCCURRENCE);
+            statements.add(DATABASE_CREATE_FEED_STATE);
+            statements.addAll(Arrays.asList(DATABASE_CREATE_LOOKUPS));
+            statements.addAll(Arrays.asList(DATABASE_CREATE_OCCURRENCE_TRIGGERS));
+            statements.addAll(Arrays.asList(DATABASE_CREATE_SAVED_SEARCHES));
+            statements.add(DATABASE_CREATE_MATCH_TRIGGER);
+            statements.addAll(Arrays.asList(DATABASE_CREATE_INDEXES));
+            statements.addAll(Arrays.asList(DATABASE_CREATE_COUNTS));
+            for (String createTriggers : DATABASE_CREATE_COUNT_TRIGGERS) {
+                statements.addAll(Arrays.asList(createTriggers.split(";\n")));
+            }
+            return statements;
+        }
+
+        private static String createMatchTable(String table) {
+            return "create table if not exists " + table + " ("
+                    + KEY_ID + " integer primary key autoincrement, "
+                    + KEY_MATCH_SEARCH_ID + " INTEGER NOT NULL, "
+                    + KEY_REGION_ID + " INTEGER NOT NULL, "
+                    + KEY_OPPORTUNITY_ID + " INTEGER NOT NULL, "
+                    + KEY_MATCH_FOUND + " INTEGER, "
+                    + KEY_MATCH_SEEN + " INTEGER NOT NULL DEFAULT 0, "
+                    + "UNIQUE (" + KEY_MATCH_SEARCH_ID + ", " + KEY_REGION_ID + ", " + KEY_OPPORTUNITY_ID + "));";
+        }
+
+        private static String createLookupTable(String table, String idColumn, String valueColumn) {
+            return "create table " + table + " ("
+                    + idColumn + " integer primary key, "
+                    + valueColumn + " TEXT NOT NULL UNIQUE);";
+        }
+
+        private static String createCountTable(String table, String keyColumn, String keyType) {
+            return "create table " + table + " ("
+                    + KEY_REGION_ID + " INTEGER NOT NULL, "
+                    + keyColumn + " " + keyType + " NOT NULL, "
+                    + KEY_OPPORTUNITY_COUNT + " INTEGER NOT NULL, "
+                    + "PRIMARY KEY (" + KEY_REGION_ID + ", " + keyColumn + "));";
+        }
+
+        /**
+         * Build the insert, delete and update triggers that keep table counting the opportunities
+         * for each value of column. Statements are separated by ";\n" for execSQL.
+         */
+        private static String createCountTriggers(String table, String keyColumn, String column, boolean castToText) {
+            String newKey = castToText ? "CAST(NEW." + column + " AS TEXT)" : "NEW." + column;
+            String oldKey = castToText ? "CAST(OLD." + column + " AS TEXT)" : "OLD." + column;
+
+            String increment = "INSERT OR IGNORE INTO " + table + " (" + KEY_REGION_ID + ", " + keyColumn + ", " + KEY_OPPORTUNITY_COUNT + ") VALUES (NEW." + KEY_REGION_ID + ", " + newKey + ", 0); "
+                    + "UPDATE " + table + " SET " + KEY_OPPORTUNITY_COUNT + " = " + KEY_OPPORTUNITY_COUNT + " + 1 WHERE " + KEY_REGION_ID + " = NEW." + KEY_REGION_ID + " AND " + keyColumn + " = " + newKey + "; ";
+            String decrement = "UPDATE " + table + " SET " + KEY_OPPORTUNITY_COUNT + " = " + KEY_OPPORTUNITY_COUNT + " - 1 WHERE " + KEY_REGION_ID + " = OLD." + KEY_REGION_ID + " AND " + keyColumn + " = " + oldKey + "; ";
+
+            return "create trigger " + table + "_insert after insert on " + OPPORTUNITY_TABLE
+                    + " begin " + increment + "end;\n"
+                    + "create trigger " + table + "_delete after delete on " + OPPORTUNITY_TABLE
+                    + " begin " + decrement + "end;\n"
+                    + "create trigger " + table + "_update after update of " + column + ", " + KEY_REGION_ID + " on " + OPPORTUNITY_TABLE
+                    + " when OLD." + column + " IS NOT NEW." + column + " OR OLD." + KEY_REGION_ID + " IS NOT NEW." + KEY_REGION_ID
+                    + " begin " + decrement + increment + "end;";
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + " which will destroy all old data");
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + " which will destroy all feed data");
+            if (oldVersion >= VERSION_SEARCH_MATCHES && oldVersion < VERSION_MATCH_REGIONS) {
+                // While the opportunities are still there to give each match its region
+                addMatchRegions(db, oldVersion >= VERSION_FEED_REGIONS);
+            }
             db.execSQL("DROP TABLE IF EXISTS " + VENUE_TABLE);
             db.execSQL("DROP TABLE IF EXISTS " + ACTIVITY_TABLE);
             db.execSQL("DROP TABLE IF EXISTS " + SUB_ACTIVITY_TABLE);
             db.execSQL("DROP TABLE IF EXISTS " + OPPORTUNITY_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + VENUE_COUNT_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + ACTIVITY_COUNT_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + SUB_ACTIVITY_COUNT_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + DAY_COUNT_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + OCCURRENCE_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + ROOM_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + DAY_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + CATEGORY_TABLE);
+            // Without the rows a change cursor would skip them, so the next sync fetches each feed in full
+            db.execSQL("DROP TABLE IF EXISTS " + FEED_STATE_TABLE);
+            // The saved searches and their matches are kept, see DATABASE_CREATE_SAVED_SEARCHES
             onCreate(db);
+
+            // Rebuild from the archived feeds rather than waiting for the network, but only once
+            // the upgrade has committed, see onOpen
+            PreferenceManager.getDefaultSharedPreferences(context).edit().putBoolean(PREF_REPLAY_PENDING, true).commit();
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            // Still pending if the process died before the replay finished
+            if (PreferenceManager.getDefaultSharedPreferences(context).getBoolean(PREF_REPLAY_PENDING, false)) {
+                Intent replay = new Intent(context, DataUpdateService.class);
+                replay.setAction(DataUpdateService.ACTION_REPLAY_ARCHIVE);
+                context.startService(replay);
+            }
+        }
+
+        /**
+         * Rebuild the matches table from before it had a region column, giving each match the
+         * region of its opportunity, or the active region where that isn't known. The table's
+         * indexes and triggers go with the old table and are recreated by onCreate.
+         */
+        private void addMatchRegions(SQLiteDatabase db, boolean opportunitiesHaveRegions) {
+            int active = Regions.getActive(context);
+            String region = !opportunitiesHaveRegions ? String.valueOf(active)
+                    : "IFNULL((SELECT " + KEY_REGION_ID + " FROM " + OPPORTUNITY_TABLE + " WHERE " + OPPORTUNITY_TABLE + "." + KEY_OPPORTUNITY_ID
+                            + " = " + SEARCH_MATCH_TABLE + "." + KEY_OPPORTUNITY_ID + " LIMIT 1), " + active + ")";
+            String columns = KEY_ID + ", " + KEY_MATCH_SEARCH_ID + ", " + KEY_OPPORTUNITY_ID + ", " + KEY_MATCH_FOUND + ", " + KEY_MATCH_SEEN;
+            String rebuilt = SEARCH_MATCH_TABLE + "_new";
+
+            // Triggers naming the old table would stop it being renamed over
+            db.execSQL("DROP TRIGGER IF EXISTS " + SAVED_SEARCH_TABLE + "_delete");
+            db.execSQL("DROP TRIGGER IF EXISTS " + SEARCH_MATCH_TABLE + "_opportunity_delete");
+            db.execSQL("DROP TABLE IF EXISTS " + rebuilt);
+            db.execSQL(createMatchTable(rebuilt));
+            db.execSQL("INSERT INTO " + rebuilt + " (" + columns + ", " + KEY_REGION_ID + ")"
+                    + " SELECT " + columns + ", " + region + " FROM " + SEARCH_MATCH_TABLE);
+            db.execSQL("DROP TABLE " + SEARCH_MATCH_TABLE);
+            db.execSQL("ALTER TABLE " + rebuilt + " RENAME TO " + SEARCH_MATCH_TABLE);
         }
     }
 }
\ No newline at end of file
@@ -3,42 +3,78 @@ package com.xoverto.matchthecity;
 import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.database.Cursor;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * An {@link IntentService} subclass for handling asynchronous task requests in
- * a service on a separate handler thread.
+ * Syncs the feeds of every region into {@link DataProvider} and looks after the database, one
+ * request at a time on the service thread.
  * <p>
- * TODO: Customize class - update intent actions, extra parameters and static
- * helper methods.
+ * A plain start (the repeating alarm) syncs every region, {@link #ACTION_REFRESH_IF_STALE} only
+ * the regions not synced recently. {@link SyncPolicy} decides whether the heavy feeds are synced
+ * now or deferred. Each feed is downloaded with {@link FeedClient}, archived with
+ * {@link FeedArchive} and ingested with {@link FeedIngester}. {@link #ACTION_REPLAY_ARCHIVE}
+ * ingests the archived copies instead, and {@link #ACTION_MAINTAIN} runs the database maintenance
+ * when it is due and the device is idle or charging.
  */
 public class DataUpdateService extends IntentService {
 
     public static String TAG = "DATA_UPDATE_SERVICE";
+
+    // Re-ingest the newest archived copy of every feed without using the network
+    public static final String ACTION_REPLAY_ARCHIVE = "com.xoverto.matchthecity.ACTION_REPLAY_ARCHIVE";
+
+    // Sync only the regions last synced longer than STALE_AFTER ago, used by the screens once they have shown their data
+    public static final String ACTION_REFRESH_IF_STALE = "com.xoverto.matchthecity.ACTION_REFRESH_IF_STALE";
+
+    // Run the database maintenance if it is due and the device is idle or charging
+    public static final String ACTION_MAINTAIN = "com.xoverto.matchthecity.ACTION_MAINTAIN";
+
+    // Followed by the region id
+    private static final String PREF_LAST_SYNC = "last_sync_";
+    private static final long STALE_AFTER = 15 * 60 * 1000;
+    // Regions synced at once; one region's download overlaps another's writes, but SQLite
+    // serializes the writes so more threads would only add memory
+    private static final int MAX_CONCURRENT_REGIONS = 2;
+    // Before feeds were named per region only this region was synced, under the bare feed name
+    private static final int LEGACY_REGION = 4;
+    private static final String PREF_ARCHIVE_RENAMED = "archive_renamed";
+
+    private static final String PREF_LAST_MAINTENANCE = "last_maintenance";
+    private static final String PREF_LAST_QUICK_CHECK = "last_quick_check";
+    private static final String PREF_ROWS_SINCE_ANALYZE = "rows_since_analyze";
+    private static final String PREF_ANALYZED = "analyzed";
+    private static final long MAINTENANCE_INTERVAL = 24 * 60 * 60 * 1000;
+    private static final long QUICK_CHECK_INTERVAL = 7 * MAINTENANCE_INTERVAL;
+    // A sync changing this many rows updates the planner statistics without waiting for the interval
+    private static final int ANALYZE_AFTER_ROWS = 500;
+
     private AlarmManager alarmManager;
     private PendingIntent alarmIntent;
+    private FeedClient feedClient;
+    private FeedArchive feedArchive;
+    private String feedBaseUrl = BuildConfig.FEED_BASE_URL;
+    private boolean replaying;
 
 
     public DataUpdateService() {
@@ -57,6 +93,16 @@ public class DataUpdateService extends IntentService {
         String ALARM_ACTION = DataAlarmReceiver.ACTION_REFRESH_DATA_ALARM;
         Intent intentToFire = new Intent(ALARM_ACTION);
         alarmIntent = PendingIntent.getBroadcast(this, 0, intentToFire, 0);
+
+        feedClient = new FeedClient(getResources().getInteger(R.integer.feed_connect_timeout),
+                getResources().getInteger(R.integer.feed_read_timeout));
+        feedArchive = new FeedArchive(new File(getFilesDir(), "feed_archive"),
+                getResources().getInteger(R.integer.feed_archive_size));
+    }
+
+    // Soak tests start their stub server on a free port, so can't set it with -PfeedBaseUrl
+    void setFeedBaseUrl(String feedBaseUrl) {
+        this.feedBaseUrl = feedBaseUrl;
     }
 
     @Override
@@ -66,10 +112,29 @@ public class DataUpdateService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent intent) {
+        renameLegacyArchive();
         if (intent != null) {
+            if (ACTION_REPLAY_ARCHIVE.equals(intent.getAction())) {
+                replayArchive();
+                return;
+            }
+            if (ACTION_MAINTAIN.equals(intent.getAction())) {
+                maintainIfDue();
+                return;
+            }
 
             Context context = getApplicationContext();
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            int[] regions = Regions.getAll(context);
+            if (ACTION_REFRESH_IF_STALE.equals(intent.getAction())) {
+                regions = staleRegions(prefs, regions);
+                if (regions.length == 0) {
+                    Log.d(TAG, "Data is fresh, skipping sync");
+                    rebuildIndexIfNeeded();
+                    return;
+                }
+            }
+
             int updateFrequency = 1; //Integer.parseInt(prefs.getString("refresh_frequency", 5));
 
 
@@ -81,345 +146,351 @@ public class DataUpdateService extends IntentService {
             } else {
                 alarmManager.cancel(alarmIntent);
             }
-            refreshData();
-        }
-    }
+            refreshData(regions);
 
-    public void refreshData() {
-        refreshVenues();
-        refreshActivities();
-        refreshSubActivities();
-        refreshOpportunities();
-    }
+            // The search index lives in memory, so build it once per process even without a sync
+            rebuildIndexIfNeeded();
 
-    private void refreshVenues() {
-        // Get the JSON
-        URL url;
-        try {
-            String venuesFeed = getString(R.string.venues_feed);
-            url = new URL(venuesFeed);
-
-            URLConnection connection;
-            connection = url.openConnection();
-
-            HttpURLConnection httpConnection = (HttpURLConnection)connection;
-            int responseCode = httpConnection.getResponseCode();
-            if(responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream in = httpConnection.getInputStream();
-
-                BufferedReader streamReader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-                StringBuilder responseStrBuilder = new StringBuilder();
-
-                String inputStr;
-                while ((inputStr = streamReader.readLine()) != null)
-                    responseStrBuilder.append(inputStr);
-                JSONArray venues = new JSONArray(responseStrBuilder.toString());
-                for(int i = 0; i < venues.length(); i++) {
-                    JSONObject venue = venues.getJSONObject(i);
-
-                    String id = venue.getString("id");
-                    String name = venue.getString("name");
-                    String address = venue.getString("address");
-                    String postcode = venue.getString("postcode");
-                    String latitude = venue.getString("latitude");
-                    String longitude = venue.getString("longitude");
-                    String web = venue.getString("web");
-                    String email = venue.getString("email");
-                    String telephone = venue.getString("telephone");
-
-                    addNewVenue(id, name, address, postcode, latitude, longitude, web, email, telephone);
-                }
-            }
-        } catch (MalformedURLException e) {
-            Log.d(TAG, "MalformedURLException");
-        } catch (IOException e) {
-            Log.d(TAG, "IOException");
-        } catch (JSONException e) {
-            Log.d(TAG, "JSONException");
-        } finally {
+            // Roll the dated occurrences forward, even when offline; a no-op until the day changes
+            getContentResolver().call(DataProvider.CONTENT_URI_OCCURRENCES, DataProvider.METHOD_EXTEND_OCCURRENCES, null, null);
+
+            maintainIfDue();
         }
     }
 
-    private void refreshActivities() {
-        // Get the JSON
-        URL url;
-        try {
-            String venuesFeed = getString(R.string.activities_feed);
-            url = new URL(venuesFeed);
-
-            URLConnection connection;
-            connection = url.openConnection();
-
-            HttpURLConnection httpConnection = (HttpURLConnection)connection;
-            int responseCode = httpConnection.getResponseCode();
-            if(responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream in = httpConnection.getInputStream();
+    /**
+     * Move the feeds archived before they were named per region to the names of the region they
+     * were synced for. Runs once, on the worker thread as it touches the disk.
+     */
+    private void renameLegacyArchive() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        if (prefs.getBoolean(PREF_ARCHIVE_RENAMED, false)) {
+            return;
+        }
+        for (FeedDescriptor feed : FeedDescriptor.ALL) {
+            feedArchive.rename(feed.name, feedName(feed, LEGACY_REGION));
+        }
+        prefs.edit().putBoolean(PREF_ARCHIVE_RENAMED, true).commit();
+    }
 
-                BufferedReader streamReader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-                StringBuilder responseStrBuilder = new StringBuilder();
+    public void refreshData(int[] regions) {
+        Context context = getApplicationContext();
+        SyncPolicy policy = SyncPolicy.forCurrentConditions(context);
+        if (!policy.canSyncLightFeeds()) {
+            Log.d(TAG, "No connection, skipping sync");
+            return;
+        }
 
-                String inputStr;
-                while ((inputStr = streamReader.readLine()) != null)
-                    responseStrBuilder.append(inputStr);
-                JSONArray venues = new JSONArray(responseStrBuilder.toString());
-                for(int i = 0; i < venues.length(); i++) {
-                    JSONObject venue = venues.getJSONObject(i);
+        boolean syncHeavyFeeds = policy.canSyncHeavyFeeds();
+        if (!syncHeavyFeeds) {
+            Log.d(TAG, "Deferring venues and opportunities: " + policy);
+        }
 
-                    String id = venue.getString("id");
-                    String title = venue.getString("title");
-                    String category = venue.getString("category");
+        List<RegionSync> synced = syncRegions(regions, syncHeavyFeeds);
+        addRowsChanged(rowsChanged(synced));
+        if (syncHeavyFeeds) {
+            FacetIndex.rebuild(getContentResolver(), Regions.getActive(context));
+        }
 
-                    addNewActivity(id, title, category);
-                }
+        SyncPolicy.setHeavySyncPending(context, !syncHeavyFeeds);
+        // A region with a failed feed stays stale, so the next refresh tries it again
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        long now = System.currentTimeMillis();
+        for (RegionSync sync : synced) {
+            if (sync.complete) {
+                editor.putLong(PREF_LAST_SYNC + sync.region, now);
+            } else {
+                Log.d(TAG, "Region " + sync.region + " not fully synced");
             }
-        } catch (MalformedURLException e) {
-            Log.d(TAG, "MalformedURLException");
-        } catch (IOException e) {
-            Log.d(TAG, "IOException");
-        } catch (JSONException e) {
-            Log.d(TAG, "JSONException");
-        } finally {
         }
+        editor.commit();
     }
 
-    private void refreshSubActivities() {
-        // Get the JSON
-        URL url;
-        try {
-            String venuesFeed = getString(R.string.sub_activities_feed);
-            url = new URL(venuesFeed);
-
-            URLConnection connection;
-            connection = url.openConnection();
-
-            HttpURLConnection httpConnection = (HttpURLConnection)connection;
-            int responseCode = httpConnection.getResponseCode();
-            if(responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream in = httpConnection.getInputStream();
-
-                BufferedReader streamReader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-                StringBuilder responseStrBuilder = new StringBuilder();
-
-                String inputStr;
-                while ((inputStr = streamReader.readLine()) != null)
-                    responseStrBuilder.append(inputStr);
-                JSONArray venues = new JSONArray(responseStrBuilder.toString());
-                for(int i = 0; i < venues.length(); i++) {
-                    JSONObject venue = venues.getJSONObject(i);
-
-                    String id = venue.getString("id");
-                    String title = venue.getString("title");
-                    String activity_id = venue.getString("activity_id");
+    private static int rowsChanged(List<RegionSync> synced) {
+        int changed = 0;
+        for (RegionSync sync : synced) {
+            changed += sync.changed;
+        }
+        return changed;
+    }
 
-                    addNewSubActivity(id, title, activity_id);
-                }
+    private static int[] staleRegions(SharedPreferences prefs, int[] regions) {
+        long now = System.currentTimeMillis();
+        int[] stale = new int[regions.length];
+        int count = 0;
+        for (int region : regions) {
+            if (now - prefs.getLong(PREF_LAST_SYNC + region, 0) >= STALE_AFTER) {
+                stale[count++] = region;
             }
-        } catch (MalformedURLException e) {
-            Log.d(TAG, "MalformedURLException");
-        } catch (IOException e) {
-            Log.d(TAG, "IOException");
-        } catch (JSONException e) {
-            Log.d(TAG, "JSONException");
-        } finally {
         }
+        return Arrays.copyOf(stale, count);
     }
 
+    /**
+     * Sync the feeds of each region, up to MAX_CONCURRENT_REGIONS at a time. Every row is stored
+     * under its region, so one region's sync never rewrites another's data.
+     *
+     * @return how the sync of each region went, in the order of regions
+     */
+    private List<RegionSync> syncRegions(int[] regions, final boolean syncHeavyFeeds) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(regions.length, MAX_CONCURRENT_REGIONS)));
+        List<Future<RegionSync>> results = new ArrayList<Future<RegionSync>>();
+        for (final int region : regions) {
+            results.add(executor.submit(new Callable<RegionSync>() {
+                @Override
+                public RegionSync call() {
+                    return syncRegion(region, syncHeavyFeeds);
+                }
+            }));
+        }
 
-    private void refreshOpportunities() {
-        // Get the JSON
-        URL url;
+        List<RegionSync> synced = new ArrayList<RegionSync>();
         try {
-            String venuesFeed = getString(R.string.opportunities_feed);
-            url = new URL(venuesFeed);
-
-            URLConnection connection;
-            connection = url.openConnection();
-
-            HttpURLConnection httpConnection = (HttpURLConnection)connection;
-            int responseCode = httpConnection.getResponseCode();
-            if(responseCode == HttpURLConnection.HTTP_OK) {
-                InputStream in = httpConnection.getInputStream();
-
-                BufferedReader streamReader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-                StringBuilder responseStrBuilder = new StringBuilder();
-
-                String inputStr;
-                while ((inputStr = streamReader.readLine()) != null)
-                    responseStrBuilder.append(inputStr);
-                JSONArray venues = new JSONArray(responseStrBuilder.toString());
-                for(int i = 0; i < venues.length(); i++) {
-                    JSONObject venue = venues.getJSONObject(i);
-
-                    String id = venue.getString("id");
-                    String name = venue.getString("name");
-                    String description = venue.getString("description");
-                    String activity_id = venue.getString("activity_id");
-                    String sub_activity_id = venue.getString("sub_activity_id");
-                    String venue_id = venue.getString("venue_id");
-                    String room = venue.getString("room");
-                    String start_time = venue.getString("start_time");
-                    String end_time = venue.getString("end_time");
-                    String day_of_week = venue.getString("day_of_week");
-
-                    addNewOpportunity(id, name, description, activity_id, sub_activity_id, venue_id, room, start_time, end_time, day_of_week);
+            for (int i = 0; i < regions.length; i++) {
+                try {
+                    synced.add(results.get(i).get());
+                } catch (ExecutionException e) {
+                    Log.d(TAG, "Region sync failed", e.getCause());
+                    RegionSync failed = new RegionSync(regions[i]);
+                    failed.complete = false;
+                    synced.add(failed);
                 }
             }
-        } catch (MalformedURLException e) {
-            Log.d(TAG, "MalformedURLException");
-        } catch (IOException e) {
-            Log.d(TAG, "IOException");
-        } catch (JSONException e) {
-            Log.d(TAG, "JSONException");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            executor.shutdown();
         }
+        return synced;
     }
 
-    private void addNewVenue(String id, String name, String address, String postcode, String latitude, String longitude, String web, String email, String telephone) {
-        ContentResolver cr = getContentResolver();
-
-        // Construct a where clause to make sure we don't already have this venue in the provider
-        String w = DataProvider.KEY_NAME + " = '" + name + "'";
-        w = DataProvider.KEY_NAME + "=?";
-
-        String[] selectionArgs = { name };
-
-        // If the venue is new, insert it into the provider
-        Cursor query = cr.query(DataProvider.CONTENT_URI_VENUES, null, w, selectionArgs, null);
-        if(query.getCount() == 0) {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_VENUE_ID, id);
-            values.put(DataProvider.KEY_NAME, name);
-
-            Double latPosition = 0.0;
-            Double longPosition = 0.0;
-
-            try {
-                latPosition = Double.parseDouble(latitude);
-                longPosition = Double.parseDouble(longitude);
-            } catch (NumberFormatException e) {
-                Log.d(TAG, "Location parsing exception for " + name, e);
-            } catch (NullPointerException e) {
-                Log.d(TAG, "Location parsing exception for " + name, e);
+    // Each region has its own ingester, which batches writes and isn't thread safe
+    private RegionSync syncRegion(int region, boolean syncHeavyFeeds) {
+        FeedIngester ingester = new FeedIngester(this);
+        RegionSync sync = new RegionSync(region);
+        for (FeedDescriptor feed : FeedDescriptor.ALL) {
+            if (syncHeavyFeeds || !feed.isHeavy()) {
+                refreshFeed(feed, region, ingester, sync);
             }
+        }
+        return sync;
+    }
 
-            values.put(DataProvider.KEY_LOCATION_LAT, latPosition);
-            values.put(DataProvider.KEY_LOCATION_LNG, longPosition);
-            values.put(DataProvider.KEY_UPDATED, java.lang.System.currentTimeMillis());
+    private static class RegionSync {
+        final int region;
+        // Rows inserted or changed
+        int changed;
+        // False once any of the region's feeds couldn't be fetched or ingested
+        boolean complete = true;
 
+        RegionSync(int region) {
+            this.region = region;
+        }
+    }
 
-            cr.insert(DataProvider.CONTENT_URI_VENUES, values);
-        } else {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_VENUE_ID, id);
-            values.put(DataProvider.KEY_NAME, name);
+    private void rebuildIndexIfNeeded() {
+        FacetIndex index = FacetIndex.getCurrent();
+        int active = Regions.getActive(getApplicationContext());
+        if (index == null || index.getRegion() != active) {
+            FacetIndex.rebuild(getContentResolver(), active);
+        }
+    }
 
-            Double latPosition = 0.0;
-            Double longPosition = 0.0;
+    /**
+     * Start a sync of the regions not synced recently. The check happens on the service thread.
+     */
+    public static void requestRefreshIfStale(Context context) {
+        Intent intent = new Intent(context, DataUpdateService.class);
+        intent.setAction(ACTION_REFRESH_IF_STALE);
+        context.startService(intent);
+    }
 
-            try {
-                latPosition = Double.parseDouble(latitude);
-                longPosition = Double.parseDouble(longitude);
-            } catch (NumberFormatException e) {
-                Log.d(TAG, "Location parsing exception for " + name, e);
-            } catch (NullPointerException e) {
-                Log.d(TAG, "Location parsing exception for " + name, e);
-            }
+    /**
+     * Ingest the newest archived copy of each feed of every region, e.g. to rebuild the database
+     * after a schema change or to give a benchmark the same input every run. While replaying,
+     * openFeed reads the archive instead of the network. The change cursors are cleared, so the
+     * next sync fetches every feed in full rather than the changes since the replayed copy.
+     */
+    public void replayArchive() {
+        replaying = true;
+        try {
+            addRowsChanged(rowsChanged(syncRegions(Regions.getAll(this), true)));
+            FacetIndex.rebuild(getContentResolver(), Regions.getActive(this));
+            PreferenceManager.getDefaultSharedPreferences(this).edit().remove(DataProvider.DatabaseHelper.PREF_REPLAY_PENDING).commit();
+        } finally {
+            replaying = false;
+        }
+    }
 
-            values.put(DataProvider.KEY_LOCATION_LAT, latPosition);
-            values.put(DataProvider.KEY_LOCATION_LNG, longPosition);
-            values.put(DataProvider.KEY_UPDATED, java.lang.System.currentTimeMillis());
+    /**
+     * Start the database maintenance, which runs only if it is due and the device is idle or charging.
+     */
+    public static void requestMaintenance(Context context) {
+        Intent intent = new Intent(context, DataUpdateService.class);
+        intent.setAction(ACTION_MAINTAIN);
+        context.startService(intent);
+    }
 
-            cr.update(DataProvider.CONTENT_URI_VENUES, values, w, null);
+    private void addRowsChanged(int changed) {
+        if (changed == 0) {
+            return;
         }
-        query.close();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        prefs.edit().putInt(PREF_ROWS_SINCE_ANALYZE, prefs.getInt(PREF_ROWS_SINCE_ANALYZE, 0) + changed).commit();
     }
 
-    private void addNewActivity(String id, String title, String category) {
-        ContentResolver cr = getContentResolver();
+    /**
+     * Reclaim free pages once a day, update the planner statistics after large syncs and run a
+     * quick integrity check once a week, all only while idle or charging.
+     */
+    private void maintainIfDue() {
+        Context context = getApplicationContext();
+        if (!SyncPolicy.forCurrentConditions(context).canRunMaintenance()) {
+            return;
+        }
 
-        // Construct a where clause to make sure we don't already have this venue in the provider
-        String w = DataProvider.KEY_ACTIVITY_ID + " = '" + id + "'";
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long now = System.currentTimeMillis();
+        boolean analyze = !prefs.getBoolean(PREF_ANALYZED, false)
+                || prefs.getInt(PREF_ROWS_SINCE_ANALYZE, 0) >= ANALYZE_AFTER_ROWS;
+        if (!analyze && now - prefs.getLong(PREF_LAST_MAINTENANCE, 0) < MAINTENANCE_INTERVAL) {
+            return;
+        }
+        boolean quickCheck = now - prefs.getLong(PREF_LAST_QUICK_CHECK, 0) >= QUICK_CHECK_INTERVAL;
 
-        // If the venue is new, insert it into the provider
-        Cursor query = cr.query(DataProvider.CONTENT_URI_ACTIVITIES, null, w, null, null);
-        if(query.getCount() == 0) {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_ACTIVITY_ID, id);
-            values.put(DataProvider.KEY_ACTIVITY_TITLE, title);
-            values.put(DataProvider.KEY_ACTIVITY_CATEGORY, category);
+        Bundle extras = new Bundle();
+        extras.putBoolean(DataProvider.EXTRA_ANALYZE, analyze);
+        extras.putBoolean(DataProvider.EXTRA_QUICK_CHECK, quickCheck);
+        getContentResolver().call(DataProvider.CONTENT_URI_VENUES, DataProvider.METHOD_MAINTAIN, null, extras);
 
-            cr.insert(DataProvider.CONTENT_URI_ACTIVITIES, values);
-        } else {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_ACTIVITY_TITLE, title);
-            values.put(DataProvider.KEY_ACTIVITY_CATEGORY, category);
+        SharedPreferences.Editor editor = prefs.edit().putLong(PREF_LAST_MAINTENANCE, now);
+        if (analyze) {
+            editor.putBoolean(PREF_ANALYZED, true).putInt(PREF_ROWS_SINCE_ANALYZE, 0);
+        }
+        if (quickCheck) {
+            editor.putLong(PREF_LAST_QUICK_CHECK, now);
+        }
+        editor.commit();
+    }
 
-            cr.update(DataProvider.CONTENT_URI_ACTIVITIES, values, w, null);
+    /**
+     * Fetch the feed of a region and ingest it, checking the opportunities it adds or changes against the saved
+     * searches.
+     * <p>
+     * Once the server has sent a change cursor with the feed, only the changes since it are asked
+     * for. A server that doesn't support that sends the whole feed, which is ingested as usual, and
+     * a feed without a cursor clears the stored one so the next sync is a full fetch again.
+     * <p>
+     * The rows changed are added to sync, which is marked incomplete if the feed couldn't be
+     * fetched or ingested.
+     */
+    private void refreshFeed(FeedDescriptor feed, int region, FeedIngester ingester, RegionSync sync) {
+        boolean ingested = false;
+        String name = feedName(feed, region);
+        try {
+            String url = feedBaseUrl + Regions.feedPath(this, feed.urlResource, region);
+            String cursor = replaying ? null : getFeedCursor(feed, region);
+            if (cursor != null) {
+                url += "?" + FeedClient.PARAM_UPDATED_SINCE + "=" + URLEncoder.encode(cursor, "UTF-8");
+            }
+            InputStream in = openFeed(url, name);
+            if(in != null) {
+                long length = replaying ? -1 : feedClient.downloadLength(feedFile(name));
+                SearchMatcher matcher = null;
+                if (feed == FeedDescriptor.OPPORTUNITIES) {
+                    matcher = SearchMatcher.load(getContentResolver());
+                }
+                try {
+                    sync.changed += ingester.ingest(feed, region, in, length, matcher);
+                    if (matcher != null) {
+                        matcher.commit(getContentResolver());
+                    }
+                    if (replaying) {
+                        // The archive holds the last whole body, which misses the changes synced since,
+                        // so the next sync has to fetch the whole feed again
+                        setFeedCursor(feed, region, null);
+                    } else {
+                        File feedFile = feedFile(name);
+                        Log.d(TAG, name + ": " + (feedClient.isDelta(feedFile) ? "changes since " + cursor : "full feed"));
+                        setFeedCursor(feed, region, feedClient.downloadCursor(feedFile));
+                    }
+                    ingested = true;
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (MalformedURLException e) {
+            Log.d(TAG, "MalformedURLException");
+        } catch (IOException e) {
+            Log.d(TAG, "IOException");
+        } catch (IllegalStateException e) {
+            // The feed wasn't the array of objects expected
+            Log.d(TAG, "Malformed " + name + " feed", e);
+        }
+        if (!ingested) {
+            sync.complete = false;
         }
-        query.close();
     }
 
-    private void addNewSubActivity(String id, String title, String activity_id) {
-        ContentResolver cr = getContentResolver();
+    private String getFeedCursor(FeedDescriptor feed, int region) {
+        Bundle extras = new Bundle();
+        extras.putString(DataProvider.EXTRA_FEED, feed.name);
+        extras.putInt(DataProvider.EXTRA_REGION, region);
+        Bundle result = getContentResolver().call(DataProvider.CONTENT_URI_VENUES, DataProvider.METHOD_GET_FEED_CURSOR, null, extras);
+        return result != null ? result.getString(DataProvider.EXTRA_CURSOR) : null;
+    }
+
+    private void setFeedCursor(FeedDescriptor feed, int region, String cursor) {
+        Bundle extras = new Bundle();
+        extras.putString(DataProvider.EXTRA_FEED, feed.name);
+        extras.putInt(DataProvider.EXTRA_REGION, region);
+        extras.putString(DataProvider.EXTRA_CURSOR, cursor);
+        getContentResolver().call(DataProvider.CONTENT_URI_VENUES, DataProvider.METHOD_SET_FEED_CURSOR, null, extras);
+    }
 
-        // Construct a where clause to make sure we don't already have this venue in the provider
-        String w = DataProvider.KEY_SUB_ACTIVITY_ID + " = '" + id + "'";
+    /**
+     * Download a feed into the cache directory, resuming an interrupted download, archive it and
+     * return a stream of its body, or null if the feed couldn't be fetched. Only whole feeds are
+     * archived, not changes-since bodies, and a version already archived isn't stored again.
+     */
+    private InputStream openFeed(String url, String name) throws IOException {
+        if (replaying) {
+            InputStream archived = feedArchive.openLatest(name);
+            if (archived == null) {
+                Log.d(TAG, "Nothing archived for " + name);
+            }
+            return archived;
+        }
 
-        // If the venue is new, insert it into the provider
-        Cursor query = cr.query(DataProvider.CONTENT_URI_SUB_ACTIVITIES, null, w, null, null);
-        if(query.getCount() == 0) {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_SUB_ACTIVITY_ID, id);
-            values.put(DataProvider.KEY_SUB_ACTIVITY_TITLE, title);
-            values.put(DataProvider.KEY_SUB_ACTIVITY_ACTIVITY_ID, activity_id);
+        File feedFile = feedFile(name);
+        if (!feedClient.download(url, feedFile)) {
+            return null;
+        }
 
-            cr.insert(DataProvider.CONTENT_URI_SUB_ACTIVITIES, values);
-        } else {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_SUB_ACTIVITY_TITLE, title);
-            values.put(DataProvider.KEY_SUB_ACTIVITY_ACTIVITY_ID, activity_id);
+        // Archiving reads, compresses and hashes the whole body, so skip it when it's already there
+        String version = feedClient.downloadVersion(feedFile);
+        if (feedClient.isDelta(feedFile) || feedArchive.isLatest(name, version)) {
+            return feedClient.openDownload(feedFile);
+        }
 
-            cr.update(DataProvider.CONTENT_URI_SUB_ACTIVITIES, values, w, null);
+        InputStream body = feedClient.openDownload(feedFile);
+        try {
+            feedArchive.archive(name, body, version);
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to archive " + name);
+        } finally {
+            body.close();
         }
-        query.close();
+
+        return feedClient.openDownload(feedFile);
     }
 
-    private void addNewOpportunity(String id, String name, String description, String activity_id, String sub_activity_id, String venue_id, String room, String start_time, String end_time, String day_of_week) {
-        ContentResolver cr = getContentResolver();
-
-        // Construct a where clause to make sure we don't already have this venue in the provider
-        String w = DataProvider.KEY_OPPORTUNITY_ID + " = '" + id + "'";
-
-        // If the venue is new, insert it into the provider
-        Cursor query = cr.query(DataProvider.CONTENT_URI_OPPORTUNITIES, null, w, null, null);
-        if(query.getCount() == 0) {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_OPPORTUNITY_ID, id);
-            values.put(DataProvider.KEY_OPPORTUNITY_NAME, name);
-            values.put(DataProvider.KEY_OPPORTUNITY_DESCRIPTION, description);
-            values.put(DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID, activity_id);
-            values.put(DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID, sub_activity_id);
-            values.put(DataProvider.KEY_OPPORTUNITY_VENUE_ID, venue_id);
-            values.put(DataProvider.KEY_OPPORTUNITY_ROOM, room);
-            values.put(DataProvider.KEY_OPPORTUNITY_START_TIME, start_time);
-            values.put(DataProvider.KEY_OPPORTUNITY_END_TIME, end_time);
-            values.put(DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK, day_of_week);
-
-            cr.insert(DataProvider.CONTENT_URI_OPPORTUNITIES, values);
-        } else {
-            ContentValues values = new ContentValues();
-            values.put(DataProvider.KEY_OPPORTUNITY_NAME, name);
-            values.put(DataProvider.KEY_OPPORTUNITY_DESCRIPTION, description);
-            values.put(DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID, activity_id);
-            values.put(DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID, sub_activity_id);
-            values.put(DataProvider.KEY_OPPORTUNITY_VENUE_ID, venue_id);
-            values.put(DataProvider.KEY_OPPORTUNITY_ROOM, room);
-            values.put(DataProvider.KEY_OPPORTUNITY_START_TIME, start_time);
-            values.put(DataProvider.KEY_OPPORTUNITY_END_TIME, end_time);
-            values.put(DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK, day_of_week);
-
-            cr.update(DataProvider.CONTENT_URI_OPPORTUNITIES, values, w, null);
-        }
-        query.close();
+    // Downloads and archives are kept per region
+    private static String feedName(FeedDescriptor feed, int region) {
+        return feed.name + "_" + region;
+    }
+
+    private File feedFile(String name) {
+        return new File(getCacheDir(), name + ".json");
     }
 }
@@ -0,0 +1,88 @@
+package com.xoverto.matchthecity;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.SimpleCursorAdapter;
+
+/**
+ * SimpleCursorAdapter for {@link SnapshotCursor}s from a {@link DiffCursorLoader}, which should
+ * hash the columns given by {@link #getBoundColumns()}.
+ * <p>
+ * A new cursor showing the same rows as the old one is swapped in without notifying the list at
+ * all. ListView has no way to be told about individual inserted or changed positions, so any
+ * other new cursor still means a notifyDataSetChanged. What this adapter avoids is the work that
+ * follows: each item view remembers the id and content hash of the row it shows, and when it is
+ * asked for the same, unchanged row again it is handed back without being rebound. With stable
+ * ids the list keeps its scroll position, so a sync that touches one row only rebinds that row.
+ */
+public class DiffCursorAdapter extends SimpleCursorAdapter {
+
+    private final String[] boundColumns;
+    private boolean unchangedSwap;
+
+    public DiffCursorAdapter(Context context, int layout, Cursor c, String[] from, int[] to, int flags) {
+        super(context, layout, c, from, to, flags);
+        boundColumns = from;
+    }
+
+    /**
+     * The columns bound to the item views, the only ones whose changes need to be seen.
+     */
+    public String[] getBoundColumns() {
+        return boundColumns;
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor c) {
+        SnapshotCursor.Diff diff = c instanceof SnapshotCursor ? ((SnapshotCursor) c).getDiff() : null;
+        unchangedSwap = diff != null && diff.isEmpty() && getCursor() != null;
+        try {
+            return super.swapCursor(c);
+        } finally {
+            unchangedSwap = false;
+        }
+    }
+
+    @Override
+    public void notifyDataSetChanged() {
+        // Every view on screen already shows the new cursor's rows
+        if (!unchangedSwap) {
+            super.notifyDataSetChanged();
+        }
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        Cursor cursor = getCursor();
+        if (!(cursor instanceof SnapshotCursor) || position >= cursor.getCount()) {
+            return super.getView(position, convertView, parent);
+        }
+
+        SnapshotCursor snapshot = (SnapshotCursor) cursor;
+        long id = snapshot.getRowId(position);
+        int hash = snapshot.getRowHash(position);
+        if (convertView != null) {
+            RowStamp stamp = (RowStamp) convertView.getTag(R.id.row_stamp);
+            if (stamp != null && stamp.id == id && stamp.hash == hash) {
+                return convertView;
+            }
+        }
+
+        View view = super.getView(position, convertView, parent);
+        RowStamp stamp = (RowStamp) view.getTag(R.id.row_stamp);
+        if (stamp == null) {
+            stamp = new RowStamp();
+            view.setTag(R.id.row_stamp, stamp);
+        }
+        stamp.id = id;
+        stamp.hash = hash;
+        return view;
+    }
+
+    private static class RowStamp {
+        long id;
+        int hash;
+    }
+}
@@ -0,0 +1,59 @@
+package com.xoverto.matchthecity;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * CursorLoader delivering {@link SnapshotCursor}s, each carrying the diff against the previous
+ * result. The row hashes and the diff are worked out on the loader thread so the UI thread only
+ * has to look them up.
+ * <p>
+ * Reloads are throttled, so a sync notifying after every batch costs one load per
+ * UPDATE_THROTTLE rather than one per batch.
+ */
+public class DiffCursorLoader extends CursorLoader {
+
+    private static final long UPDATE_THROTTLE = 1000;
+
+    private final String[] hashedColumns;
+
+    // Last result delivered, read on the loader thread to diff the next one against
+    private volatile SnapshotCursor previous;
+
+    /**
+     * Load as a CursorLoader, hashing the hashedColumns of each row, e.g. the columns an adapter binds.
+     */
+    public DiffCursorLoader(Context context, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder,
+                            String[] hashedColumns) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        this.hashedColumns = hashedColumns;
+        setUpdateThrottle(UPDATE_THROTTLE);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = super.loadInBackground();
+        if (cursor == null) {
+            return null;
+        }
+        SnapshotCursor snapshot = new SnapshotCursor(cursor, hashedColumns);
+        snapshot.diffAgainst(previous);
+        return snapshot;
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (cursor instanceof SnapshotCursor) {
+            previous = (SnapshotCursor) cursor;
+        }
+        super.deliverResult(cursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        previous = null;
+    }
+}
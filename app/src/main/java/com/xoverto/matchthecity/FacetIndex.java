@@ -0,0 +1,219 @@
+package com.xoverto.matchthecity;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the opportunities for the advanced search, combining activity, sub activity,
+ * venue, day and time of day filters with live facet counts without going to SQLite.
+ * <p>
+ * Opportunities are numbered with dense ordinals in _id order and every facet value keeps a
+ * {@link PostingBitmap} of the ordinals that have it. Values of one facet are ORed, facets are
+ * ANDed. The index covers one region and is immutable: {@link #rebuild(ContentResolver, int)}
+ * builds a new one off the main thread after each sync or change of region and swaps it in, so
+ * readers never see a half built index.
+ */
+public class FacetIndex {
+
+    public static final String TAG = "FACET_INDEX";
+
+    public static final String FACET_ACTIVITY = DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID;
+    public static final String FACET_SUB_ACTIVITY = DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID;
+    public static final String FACET_VENUE = DataProvider.KEY_OPPORTUNITY_VENUE_ID;
+    public static final String FACET_DAY = DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK;
+    public static final String FACET_TIME_OF_DAY = "time_of_day";
+
+    // Values of the time of day facet, by start time
+    public static final String MORNING = "morning";
+    public static final String AFTERNOON = "afternoon";
+    public static final String EVENING = "evening";
+
+    private static final String[] PROJECTION = {
+            DataProvider.KEY_ID,
+            DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID,
+            DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID,
+            DataProvider.KEY_OPPORTUNITY_VENUE_ID,
+            DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK,
+            DataProvider.KEY_OPPORTUNITY_START_TIME
+    };
+
+    private static volatile FacetIndex current;
+
+    private final int region;
+    // Ordinal to opportunity _id
+    private final long[] rowIds;
+    private final Map<String, Map<String, PostingBitmap>> postings;
+    private final PostingBitmap all;
+
+    private FacetIndex(int region, long[] rowIds, Map<String, Map<String, PostingBitmap>> postings) {
+        this.region = region;
+        this.rowIds = rowIds;
+        this.postings = postings;
+        this.all = new PostingBitmap();
+        for (int i = 0; i < rowIds.length; i++) {
+            all.add(i);
+        }
+    }
+
+    /**
+     * The latest index, or null if none has been built yet.
+     */
+    public static FacetIndex getCurrent() {
+        return current;
+    }
+
+    /**
+     * Build a new index of the opportunities of region from the provider and make it current.
+     * Call from a background thread.
+     */
+    public static FacetIndex rebuild(ContentResolver cr, int region) {
+        long start = SystemClock.elapsedRealtime();
+        FacetIndex index = build(cr, region);
+        if (index != null) {
+            current = index;
+            Log.d(TAG, "Indexed " + index.size() + " opportunities of region " + region + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return index;
+    }
+
+    private static FacetIndex build(ContentResolver cr, int region) {
+        Cursor cursor = cr.query(DataProvider.forRegion(DataProvider.CONTENT_URI_OPPORTUNITIES, region), PROJECTION, null, null, DataProvider.KEY_ID);
+        if (cursor == null) {
+            return null;
+        }
+
+        Map<String, Map<String, PostingBitmap>> postings = new HashMap<String, Map<String, PostingBitmap>>();
+        String[] facets = { FACET_ACTIVITY, FACET_SUB_ACTIVITY, FACET_VENUE, FACET_DAY, FACET_TIME_OF_DAY };
+        for (String facet : facets) {
+            postings.put(facet, new HashMap<String, PostingBitmap>());
+        }
+
+        long[] rowIds = new long[cursor.getCount()];
+        try {
+            int ordinal = 0;
+            while (cursor.moveToNext()) {
+                rowIds[ordinal] = cursor.getLong(0);
+                post(postings.get(FACET_ACTIVITY), cursor.getString(1), ordinal);
+                post(postings.get(FACET_SUB_ACTIVITY), cursor.getString(2), ordinal);
+                post(postings.get(FACET_VENUE), cursor.getString(3), ordinal);
+                int day = OccurrenceExpander.parseDayOfWeek(cursor.getString(4));
+                post(postings.get(FACET_DAY), day >= 0 ? String.valueOf(day) : null, ordinal);
+                post(postings.get(FACET_TIME_OF_DAY), timeOfDay(cursor.getString(5)), ordinal);
+                ordinal++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return new FacetIndex(region, rowIds, postings);
+    }
+
+    private static void post(Map<String, PostingBitmap> values, String value, int ordinal) {
+        if (value == null) {
+            return;
+        }
+        PostingBitmap bitmap = values.get(value);
+        if (bitmap == null) {
+            bitmap = new PostingBitmap();
+            values.put(value, bitmap);
+        }
+        bitmap.add(ordinal);
+    }
+
+    static String timeOfDay(String startTime) {
+        int minutes = OccurrenceExpander.parseMinutes(startTime);
+        if (minutes < 0) {
+            return null;
+        }
+        if (minutes < 12 * 60) {
+            return MORNING;
+        }
+        return minutes < 17 * 60 ? AFTERNOON : EVENING;
+    }
+
+    public int getRegion() {
+        return region;
+    }
+
+    public int size() {
+        return rowIds.length;
+    }
+
+    /**
+     * Return the opportunities matching the filters, a map from facet to the values allowed for
+     * it. Facets that aren't in the map, or have no values, aren't filtered on.
+     */
+    public PostingBitmap match(Map<String, ? extends Collection<String>> filters) {
+        return match(filters, null);
+    }
+
+    private PostingBitmap match(Map<String, ? extends Collection<String>> filters, String excludedFacet) {
+        PostingBitmap result = all;
+        for (Map.Entry<String, ? extends Collection<String>> filter : filters.entrySet()) {
+            if (filter.getKey().equals(excludedFacet) || filter.getValue() == null || filter.getValue().isEmpty()) {
+                continue;
+            }
+            result = result.and(anyOf(filter.getKey(), filter.getValue()));
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the opportunities having any of the values for facet.
+     */
+    public PostingBitmap anyOf(String facet, Collection<String> values) {
+        Map<String, PostingBitmap> facetPostings = postings.get(facet);
+        PostingBitmap result = new PostingBitmap();
+        if (facetPostings == null) {
+            return result;
+        }
+        for (String value : values) {
+            PostingBitmap bitmap = facetPostings.get(value);
+            if (bitmap != null) {
+                result = result.or(bitmap);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count the matches for each value of facet, applying every filter except the one on facet
+     * itself so the counts show what choosing another value would give.
+     */
+    public Map<String, Integer> facetCounts(String facet, Map<String, ? extends Collection<String>> filters) {
+        Map<String, PostingBitmap> facetPostings = postings.get(facet);
+        if (facetPostings == null) {
+            return Collections.emptyMap();
+        }
+        PostingBitmap matches = match(filters, facet);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, PostingBitmap> value : facetPostings.entrySet()) {
+            int count = value.getValue().andCardinality(matches);
+            if (count > 0) {
+                counts.put(value.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Map matches back to opportunity _ids, e.g. for an _id IN (...) selection on the provider.
+     */
+    public long[] rowIds(PostingBitmap matches) {
+        int[] ordinals = matches.toArray();
+        long[] ids = new long[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            ids[i] = rowIds[ordinals[i]];
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,250 @@
+package com.xoverto.matchthecity;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the last few raw bodies of each feed so they can be ingested again without the network.
+ * <p>
+ * Bodies are stored gzipped and named by the SHA-1 of their content, so an unchanged feed is
+ * stored once however many times it is archived. Each feed has an index file listing its archived
+ * hashes, newest first. Blobs no longer listed by any feed are removed.
+ * <p>
+ * The version the server gave the newest body (its validator or change cursor) is kept next to
+ * the index, so a feed that hasn't changed can be recognised without reading the body again.
+ */
+public class FeedArchive {
+
+    public static final String TAG = "FEED_ARCHIVE";
+
+    private static final String BLOB_SUFFIX = ".json.gz";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String VERSION_SUFFIX = ".version";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File directory;
+    private final int maxEntries;
+
+    public FeedArchive(File directory, int maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Whether the newest entry for feed was archived with version. A null version is never the
+     * latest, as there is nothing to tell the bodies apart but their content.
+     */
+    public synchronized boolean isLatest(String feed, String version) {
+        return version != null && version.equals(readVersion(feed));
+    }
+
+    /**
+     * Archive a feed body read from in, and record it as the newest entry for feed.
+     *
+     * @param version the server's version of the body, or null if it didn't give one
+     * @return the content hash the body was stored under
+     */
+    public synchronized String archive(String feed, InputStream in, String version) throws IOException {
+        directory.mkdirs();
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available");
+        }
+
+        File temp = new File(directory, feed + ".tmp");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+        try {
+            DigestInputStream digestIn = new DigestInputStream(in, digest);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = digestIn.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+
+        String hash = toHex(digest.digest());
+        File blob = new File(directory, hash + BLOB_SUFFIX);
+        if (blob.exists()) {
+            temp.delete();
+        } else if (!temp.renameTo(blob)) {
+            temp.delete();
+            throw new IOException("Unable to archive " + feed);
+        }
+
+        List<String> entries = readIndex(feed);
+        entries.remove(hash);
+        entries.add(0, hash);
+        while (entries.size() > maxEntries) {
+            entries.remove(entries.size() - 1);
+        }
+        writeIndex(feed, entries);
+        writeVersion(feed, version);
+        prune();
+
+        return hash;
+    }
+
+    /**
+     * Move the entries archived under the name from to the name to, e.g. after feeds were renamed.
+     * Does nothing if nothing is archived under from, or to already has entries of its own.
+     */
+    public synchronized void rename(String from, String to) {
+        File fromIndex = new File(directory, from + INDEX_SUFFIX);
+        File toIndex = new File(directory, to + INDEX_SUFFIX);
+        if (!fromIndex.exists()) {
+            return;
+        }
+        new File(directory, from + VERSION_SUFFIX).delete();
+        if (toIndex.exists()) {
+            fromIndex.delete();
+            prune();
+        } else if (fromIndex.renameTo(toIndex)) {
+            Log.d(TAG, "Moved archive of " + from + " to " + to);
+        } else {
+            Log.d(TAG, "Unable to move archive of " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Open the newest archived body of feed, or return null if it has never been archived.
+     */
+    public synchronized InputStream openLatest(String feed) throws IOException {
+        List<String> entries = readIndex(feed);
+        if (entries.isEmpty()) {
+            return null;
+        }
+        File blob = new File(directory, entries.get(0) + BLOB_SUFFIX);
+        if (!blob.exists()) {
+            return null;
+        }
+        return new GZIPInputStream(new FileInputStream(blob), BUFFER_SIZE);
+    }
+
+    private List<String> readIndex(String feed) {
+        List<String> entries = new ArrayList<String>();
+        File index = new File(directory, feed + INDEX_SUFFIX);
+        if (!index.exists()) {
+            return entries;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        entries.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to read index for " + feed);
+        }
+        return entries;
+    }
+
+    private void writeIndex(String feed, List<String> entries) throws IOException {
+        File index = new File(directory, feed + INDEX_SUFFIX);
+        File temp = new File(directory, feed + INDEX_SUFFIX + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (String entry : entries) {
+                writer.write(entry);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(index)) {
+            throw new IOException("Unable to write index for " + feed);
+        }
+    }
+
+    private String readVersion(String feed) {
+        File file = new File(directory, feed + VERSION_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeVersion(String feed, String version) throws IOException {
+        File file = new File(directory, feed + VERSION_SUFFIX);
+        if (version == null) {
+            file.delete();
+            return;
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(version);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void prune() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Set<String> referenced = new HashSet<String>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(INDEX_SUFFIX)) {
+                referenced.addAll(readIndex(name.substring(0, name.length() - INDEX_SUFFIX.length())));
+            }
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(BLOB_SUFFIX) && !referenced.contains(name.substring(0, name.length() - BLOB_SUFFIX.length()))) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,325 @@
+package com.xoverto.matchthecity;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP client used by {@link DataUpdateService} to fetch the feeds.
+ * <p>
+ * Every request has a connect and read timeout so a stalled server can't hang the sync. Responses
+ * are always read to the end and closed so the underlying keep-alive connection goes back to the
+ * platform pool, letting every feed reuse one warm connection (and its resolved address) to the
+ * server. Read buffers come from a small bounded pool rather than being allocated per request.
+ * Downloads are spooled to disk and resumed after an interruption rather than restarted.
+ */
+public class FeedClient {
+
+    public static final String TAG = "FEED_CLIENT";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final int HTTP_PARTIAL = 206;
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String META_SUFFIX = ".meta";
+
+    // Changes-since protocol: a server supporting it sends the cursor to ask for the changes after
+    // this body with every feed, and marks a body holding only the changes asked for
+    public static final String PARAM_UPDATED_SINCE = "updated_since";
+    private static final String HEADER_CURSOR = "X-Feed-Cursor";
+    private static final String HEADER_DELTA = "X-Feed-Delta";
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", "4");
+    }
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ArrayDeque<byte[]> bufferPool = new ArrayDeque<byte[]>();
+
+    public FeedClient(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Download url into target, resuming an earlier interrupted download where possible.
+     * <p>
+     * The body is spooled to a partial file next to target along with the response validator
+     * (ETag or Last-Modified). If the transfer is cut off the partial file is kept, and the next
+     * call asks the server for the rest with Range/If-Range. The server sends the whole body again
+     * if the feed has changed since. Bodies are stored exactly as sent (gzip or not) so the offsets
+     * always line up; use {@link #openDownload(File)} to read them. The changes-since headers are
+     * kept with the body, see {@link #downloadCursor(File)} and {@link #isDelta(File)}.
+     *
+     * @return true if target now holds the complete body, false if the server didn't return it.
+     */
+    public boolean download(String url, File target) throws IOException {
+        File partial = new File(target.getPath() + PARTIAL_SUFFIX);
+        File partialMeta = new File(target.getPath() + PARTIAL_SUFFIX + META_SUFFIX);
+
+        long offset = partial.exists() ? partial.length() : 0;
+        String[] meta = offset > 0 ? readMeta(partialMeta) : null;
+        String validator = meta != null ? meta[0] : null;
+
+        HttpURLConnection connection = open(url);
+        // Asking for gzip ourselves turns off transparent decompression, keeping Range in step with the file
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (offset > 0 && validator != null) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            connection.setRequestProperty("If-Range", validator);
+        }
+
+        boolean reusable = false;
+        try {
+            int responseCode = connection.getResponseCode();
+            boolean append;
+            if (responseCode == HTTP_PARTIAL && validator != null
+                    && String.valueOf(connection.getHeaderField("Content-Range")).startsWith("bytes " + offset + "-")) {
+                Log.d(TAG, "Resuming " + url + " at " + offset);
+                append = true;
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                append = false;
+                writeMeta(partialMeta, responseValidator(connection), connection.getContentEncoding(),
+                        connection.getHeaderField(HEADER_CURSOR), "true".equalsIgnoreCase(connection.getHeaderField(HEADER_DELTA)));
+            } else {
+                Log.d(TAG, "HTTP " + responseCode + " for " + url);
+                if (offset > 0) {
+                    // The partial body can't be resumed, start again next time
+                    partial.delete();
+                    partialMeta.delete();
+                }
+                reusable = drain(connection.getErrorStream());
+                return false;
+            }
+
+            long expected = contentLength(connection);
+            InputStream in = connection.getInputStream();
+            OutputStream out = new FileOutputStream(partial, append);
+            try {
+                long copied = copy(in, out);
+                // Some connections end a body cut short as if it were complete
+                if (expected >= 0 && copied < expected) {
+                    throw new IOException("Download of " + url + " cut off after " + copied + " of " + expected + " bytes");
+                }
+                reusable = true;
+            } finally {
+                out.close();
+                in.close();
+            }
+        } finally {
+            if (!reusable) {
+                connection.disconnect();
+            }
+        }
+
+        File targetMeta = new File(target.getPath() + META_SUFFIX);
+        target.delete();
+        targetMeta.delete();
+        if (!partial.renameTo(target) || !partialMeta.renameTo(targetMeta)) {
+            throw new IOException("Unable to move download into " + target);
+        }
+        return true;
+    }
+
+    /**
+     * Open a file written by {@link #download(String, File)}, decompressing it if it was sent gzipped.
+     */
+    public InputStream openDownload(File target) throws IOException {
+        String[] meta = readMeta(new File(target.getPath() + META_SUFFIX));
+        InputStream in = new BufferedInputStream(new FileInputStream(target), BUFFER_SIZE);
+        if (meta != null && "gzip".equalsIgnoreCase(meta[1])) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    /**
+     * The number of bytes {@link #openDownload(File)} will return for target. For a gzipped body
+     * this is read from the gzip trailer, which holds the size modulo 4GB.
+     */
+    public long downloadLength(File target) throws IOException {
+        String[] meta = readMeta(new File(target.getPath() + META_SUFFIX));
+        if (meta == null || !"gzip".equalsIgnoreCase(meta[1])) {
+            return target.length();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(target, "r");
+        try {
+            if (file.length() < 4) {
+                return -1;
+            }
+            file.seek(file.length() - 4);
+            byte[] trailer = new byte[4];
+            file.readFully(trailer);
+            return (trailer[0] & 0xffL) | (trailer[1] & 0xffL) << 8 | (trailer[2] & 0xffL) << 16 | (trailer[3] & 0xffL) << 24;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * The cursor the server sent with the body in target, to ask for the changes after it with
+     * {@link #PARAM_UPDATED_SINCE}, or null if the server doesn't support changes-since requests.
+     */
+    public String downloadCursor(File target) {
+        String[] meta = readMeta(new File(target.getPath() + META_SUFFIX));
+        return meta != null ? meta[2] : null;
+    }
+
+    /**
+     * The server's version of the body in target, its validator or else its change cursor, or null
+     * if it sent neither. Two downloads of the same version hold the same body.
+     */
+    public String downloadVersion(File target) {
+        String[] meta = readMeta(new File(target.getPath() + META_SUFFIX));
+        if (meta == null) {
+            return null;
+        }
+        return meta[0] != null ? meta[0] : meta[2];
+    }
+
+    /**
+     * Whether the body in target holds only the changes since the cursor asked for, upserts and
+     * tombstones, rather than the whole feed.
+     */
+    public boolean isDelta(File target) {
+        String[] meta = readMeta(new File(target.getPath() + META_SUFFIX));
+        return meta != null && "true".equals(meta[3]);
+    }
+
+    private static String responseValidator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        // Weak validators can't be used with If-Range
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static String[] readMeta(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String validator = reader.readLine();
+                String encoding = reader.readLine();
+                // Absent from files written before the changes-since protocol
+                String cursor = reader.readLine();
+                String delta = reader.readLine();
+                return new String[] { emptyToNull(validator), emptyToNull(encoding), emptyToNull(cursor), emptyToNull(delta) };
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeMeta(File file, String validator, String encoding, String cursor, boolean delta) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write((validator != null ? validator : "") + "\n");
+            writer.write((encoding != null ? encoding : "") + "\n");
+            writer.write((cursor != null ? cursor : "") + "\n");
+            writer.write(String.valueOf(delta) + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Connection", "keep-alive");
+        return connection;
+    }
+
+    // The length of the body as sent, or -1 if the server didn't say
+    private static long contentLength(HttpURLConnection connection) {
+        String length = connection.getHeaderField("Content-Length");
+        try {
+            return length != null ? Long.parseLong(length.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = obtainBuffer();
+        long copied = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return copied;
+    }
+
+    private boolean drain(InputStream in) {
+        if (in == null) {
+            return true;
+        }
+        byte[] buffer = obtainBuffer();
+        try {
+            while (in.read(buffer) != -1) {
+                // Discard the error body so the connection can be reused
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            releaseBuffer(buffer);
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private byte[] obtainBuffer() {
+        synchronized (bufferPool) {
+            byte[] buffer = bufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        synchronized (bufferPool) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.push(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.xoverto.matchthecity;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declares how one feed is ingested: where it is fetched from, which provider table it fills, the
+ * field that identifies a row and how each JSON field maps to a column. {@link FeedIngester} runs
+ * every feed from one of these, so a new feed only needs a descriptor added to {@link #ALL}.
+ */
+public class FeedDescriptor {
+
+    /**
+     * How the string value of a JSON field is decoded into a column, and compared with the value
+     * already stored so unchanged rows are left alone.
+     */
+    public enum Type {
+        TEXT {
+            @Override
+            void put(ContentValues values, String column, String raw) {
+                values.put(column, raw);
+            }
+
+            @Override
+            boolean matches(Cursor row, int index, ContentValues values, String column) {
+                String value = values.getAsString(column);
+                return value == null ? row.isNull(index) : value.equals(row.getString(index));
+            }
+        },
+        // Text repeated across many rows, such as a day of the week; one instance is kept per value
+        LABEL {
+            @Override
+            void put(ContentValues values, String column, String raw) {
+                values.put(column, raw);
+            }
+
+            @Override
+            boolean matches(Cursor row, int index, ContentValues values, String column) {
+                return TEXT.matches(row, index, values, column);
+            }
+        },
+        // Unparseable values are stored as 0
+        REAL {
+            @Override
+            void put(ContentValues values, String column, String raw) {
+                double value = 0;
+                if (raw != null) {
+                    try {
+                        value = Double.parseDouble(raw);
+                    } catch (NumberFormatException e) {
+                        // Leave as 0
+                    }
+                }
+                values.put(column, value);
+            }
+
+            @Override
+            boolean matches(Cursor row, int index, ContentValues values, String column) {
+                Double value = values.getAsDouble(column);
+                return value == null ? row.isNull(index) : !row.isNull(index) && value == row.getDouble(index);
+            }
+        };
+
+        abstract void put(ContentValues values, String column, String raw);
+
+        abstract boolean matches(Cursor row, int index, ContentValues values, String column);
+    }
+
+    public static class Field {
+        public final String name;
+        public final String column;
+        public final Type type;
+
+        Field(String name, String column, Type type) {
+            this.name = name;
+            this.column = column;
+            this.type = type;
+        }
+    }
+
+    public static final FeedDescriptor VENUES = new FeedDescriptor("venues", R.string.venues_feed, DataProvider.CONTENT_URI_VENUES)
+            .key("id", DataProvider.KEY_VENUE_ID)
+            .field("name", DataProvider.KEY_NAME, Type.TEXT)
+            .field("latitude", DataProvider.KEY_LOCATION_LAT, Type.REAL)
+            .field("longitude", DataProvider.KEY_LOCATION_LNG, Type.REAL)
+            .field("address", DataProvider.KEY_ADDRESS, Type.TEXT)
+            .field("postcode", DataProvider.KEY_POSTCODE, Type.TEXT)
+            .field("web", DataProvider.KEY_WEB, Type.TEXT)
+            .field("email", DataProvider.KEY_EMAIL, Type.TEXT)
+            .field("telephone", DataProvider.KEY_TELEPHONE, Type.TEXT)
+            .stampedWith(DataProvider.KEY_UPDATED)
+            .heavy();
+
+    public static final FeedDescriptor ACTIVITIES = new FeedDescriptor("activities", R.string.activities_feed, DataProvider.CONTENT_URI_ACTIVITIES)
+            .key("id", DataProvider.KEY_ACTIVITY_ID)
+            .field("title", DataProvider.KEY_ACTIVITY_TITLE, Type.TEXT)
+            .field("category", DataProvider.KEY_ACTIVITY_CATEGORY, Type.LABEL);
+
+    public static final FeedDescriptor SUB_ACTIVITIES = new FeedDescriptor("sub_activities", R.string.sub_activities_feed, DataProvider.CONTENT_URI_SUB_ACTIVITIES)
+            .key("id", DataProvider.KEY_SUB_ACTIVITY_ID)
+            .field("title", DataProvider.KEY_SUB_ACTIVITY_TITLE, Type.TEXT)
+            .field("activity_id", DataProvider.KEY_SUB_ACTIVITY_ACTIVITY_ID, Type.TEXT);
+
+    public static final FeedDescriptor OPPORTUNITIES = new FeedDescriptor("opportunities", R.string.opportunities_feed, DataProvider.CONTENT_URI_OPPORTUNITIES)
+            .key("id", DataProvider.KEY_OPPORTUNITY_ID)
+            .field("name", DataProvider.KEY_OPPORTUNITY_NAME, Type.TEXT)
+            .field("description", DataProvider.KEY_OPPORTUNITY_DESCRIPTION, Type.TEXT)
+            .field("activity_id", DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID, Type.TEXT)
+            .field("sub_activity_id", DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID, Type.TEXT)
+            .field("venue_id", DataProvider.KEY_OPPORTUNITY_VENUE_ID, Type.TEXT)
+            .field("room", DataProvider.KEY_OPPORTUNITY_ROOM, Type.LABEL)
+            .field("start_time", DataProvider.KEY_OPPORTUNITY_START_TIME, Type.TEXT)
+            .field("end_time", DataProvider.KEY_OPPORTUNITY_END_TIME, Type.TEXT)
+            .field("day_of_week", DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK, Type.LABEL)
+            .heavy();
+
+    // A row of a changes-since feed with this field true is a tombstone: the row with its key is deleted
+    public static final String TOMBSTONE_FIELD = "deleted";
+
+    // In sync order, so the rows an opportunity refers to are in place before it
+    public static final List<FeedDescriptor> ALL = Collections.unmodifiableList(Arrays.asList(
+            VENUES, ACTIVITIES, SUB_ACTIVITIES, OPPORTUNITIES));
+
+    public final String name;
+    public final int urlResource;
+    public final Uri contentUri;
+
+    private Field key;
+    private String stampColumn;
+    private boolean heavy;
+    private final List<Field> fields = new ArrayList<Field>();
+    private final Map<String, Field> fieldsByName = new HashMap<String, Field>();
+    private String[] projection;
+
+    public FeedDescriptor(String name, int urlResource, Uri contentUri) {
+        this.name = name;
+        this.urlResource = urlResource;
+        this.contentUri = contentUri;
+    }
+
+    /**
+     * The field identifying a row, used to find the row already stored.
+     */
+    public FeedDescriptor key(String name, String column) {
+        key = new Field(name, column, Type.TEXT);
+        return field(key);
+    }
+
+    public FeedDescriptor field(String name, String column, Type type) {
+        return field(new Field(name, column, type));
+    }
+
+    private FeedDescriptor field(Field field) {
+        fields.add(field);
+        fieldsByName.put(field.name, field);
+        projection = null;
+        return this;
+    }
+
+    /**
+     * A column set to the current time whenever a row is inserted or changed.
+     */
+    public FeedDescriptor stampedWith(String column) {
+        stampColumn = column;
+        return this;
+    }
+
+    /**
+     * A large feed, only synced when {@link SyncPolicy#canSyncHeavyFeeds()} allows.
+     */
+    public FeedDescriptor heavy() {
+        heavy = true;
+        return this;
+    }
+
+    public boolean isHeavy() {
+        return heavy;
+    }
+
+    public Field getKey() {
+        return key;
+    }
+
+    public String getStampColumn() {
+        return stampColumn;
+    }
+
+    public List<Field> getFields() {
+        return fields;
+    }
+
+    /**
+     * The field a JSON name maps to, or null if the feed doesn't store it.
+     */
+    public Field getField(String name) {
+        return fieldsByName.get(name);
+    }
+
+    /**
+     * The mapped columns, in field order.
+     */
+    public String[] getProjection() {
+        if (projection == null) {
+            String[] columns = new String[fields.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = fields.get(i).column;
+            }
+            projection = columns;
+        }
+        return projection;
+    }
+}
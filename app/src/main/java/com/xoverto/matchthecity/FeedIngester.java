@@ -0,0 +1,276 @@
+package com.xoverto.matchthecity;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Streams the rows of a feed into its provider table as its {@link FeedDescriptor} declares.
+ * <p>
+ * Each object is decoded straight from the reader into ContentValues, skipping fields the feed
+ * doesn't store, and compared with the stored row so only new and changed rows are written. A
+ * changes-since feed can also carry tombstones, rows marked {@link FeedDescriptor#TOMBSTONE_FIELD},
+ * which delete the stored row with their key.
+ * <p>
+ * Writes are committed in chunks of at most {@link #CHUNK_ROWS} rows or {@link #CHUNK_MILLIS} of
+ * reading, each one provider batch in a single transaction. The lists fill in as each chunk lands,
+ * the write lock is only held for a chunk at a time, and a {@link SyncProgress} broadcast follows
+ * each chunk.
+ */
+public class FeedIngester {
+
+    public static final String TAG = "FEED_INGESTER";
+
+    private static final int CHUNK_ROWS = 200;
+    private static final long CHUNK_MILLIS = 500;
+
+    private final Context context;
+    private final ContentResolver cr;
+    private final ArrayList<ContentProviderOperation> pending = new ArrayList<ContentProviderOperation>();
+    // Keys written in the pending chunk, which a lookup of the same key wouldn't see yet
+    private final HashSet<String> pendingKeys = new HashSet<String>();
+    // One instance of each label string, which repeat across thousands of rows
+    private final HashMap<String, String> labels = new HashMap<String, String>();
+    // Whether the last row read was a tombstone
+    private boolean tombstone;
+
+    public FeedIngester(Context context) {
+        this.context = context;
+        this.cr = context.getContentResolver();
+    }
+
+    /**
+     * Ingest the JSON array of objects read from in as the rows of region, passing each inserted
+     * or changed row to matcher if there is one. Rows of other regions are left alone.
+     *
+     * @param length the number of bytes in the feed, or -1 if not known, to estimate progress
+     * @return the number of rows inserted, changed or deleted
+     */
+    public int ingest(FeedDescriptor feed, int region, InputStream in, long length, SearchMatcher matcher) throws IOException {
+        CountingInputStream counter = new CountingInputStream(in);
+        JsonReader reader = new JsonReader(new InputStreamReader(counter, "UTF-8"));
+        int rows = 0;
+        int changed = 0;
+        long chunkStart = SystemClock.elapsedRealtime();
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                ContentValues values = readRow(feed, reader);
+                rows++;
+                String key = values.getAsString(feed.getKey().column);
+                if (key == null) {
+                    Log.d(TAG, "Skipping " + feed.name + " row without " + feed.getKey().name);
+                    continue;
+                }
+                if (pendingKeys.contains(key)) {
+                    flush();
+                }
+                values.put(DataProvider.KEY_REGION_ID, region);
+                if (tombstone) {
+                    remove(feed, region, key);
+                    pendingKeys.add(key);
+                    changed++;
+                } else if (store(feed, region, key, values)) {
+                    pendingKeys.add(key);
+                    changed++;
+                    if (matcher != null) {
+                        matcher.match(values);
+                    }
+                }
+
+                if (pending.size() >= CHUNK_ROWS || SystemClock.elapsedRealtime() - chunkStart >= CHUNK_MILLIS) {
+                    flush();
+                    SyncProgress.publish(context, feed.name, region, rows, estimateRows(rows, counter.count, length), counter.count, false);
+                    chunkStart = SystemClock.elapsedRealtime();
+                }
+            }
+            reader.endArray();
+            flush();
+        } finally {
+            // Rows not yet committed are dropped along with the rest of a failed feed
+            pending.clear();
+            pendingKeys.clear();
+            reader.close();
+        }
+
+        SyncProgress.publish(context, feed.name, region, rows, rows, counter.count, true);
+        Log.d(TAG, feed.name + " in region " + region + ": " + changed + " of " + rows + " rows changed");
+        return changed;
+    }
+
+    // Scale up the rows read so far by the share of the feed read so far
+    private static int estimateRows(int rows, long bytesRead, long length) {
+        if (length <= 0 || bytesRead <= 0) {
+            return -1;
+        }
+        return (int) (rows * length / bytesRead);
+    }
+
+    private void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            cr.applyBatch(DataProvider.AUTHORITY, pending);
+        } catch (RemoteException e) {
+            throw new IOException("Unable to write chunk: " + e);
+        } catch (OperationApplicationException e) {
+            throw new IOException("Unable to write chunk: " + e);
+        } finally {
+            pending.clear();
+            pendingKeys.clear();
+        }
+    }
+
+    private ContentValues readRow(FeedDescriptor feed, JsonReader reader) throws IOException {
+        ContentValues values = new ContentValues();
+        tombstone = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (FeedDescriptor.TOMBSTONE_FIELD.equals(name) && token == JsonToken.BOOLEAN) {
+                tombstone = reader.nextBoolean();
+                continue;
+            }
+            FeedDescriptor.Field field = feed.getField(name);
+            // Nested values aren't used by any feed
+            if (field == null || token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+
+            String raw;
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                raw = null;
+            } else if (token == JsonToken.BOOLEAN) {
+                raw = String.valueOf(reader.nextBoolean());
+            } else {
+                raw = reader.nextString();
+            }
+            if (field.type == FeedDescriptor.Type.LABEL && raw != null) {
+                raw = intern(raw);
+            }
+            field.type.put(values, field.column, raw);
+        }
+        reader.endObject();
+        return values;
+    }
+
+    /**
+     * Queue an insert of the row, or an update if it is stored with different values.
+     *
+     * @return true if a write was queued
+     */
+    private boolean store(FeedDescriptor feed, int region, String key, ContentValues values) {
+        String where = feed.getKey().column + "=?";
+        String[] whereArgs = { key };
+
+        // The query is scoped to the region by the provider, the update by its selection
+        Cursor row = cr.query(DataProvider.forRegion(feed.contentUri, region), feed.getProjection(), where, whereArgs, null);
+        try {
+            if (row.moveToFirst()) {
+                if (!differs(feed.getFields(), row, values)) {
+                    return false;
+                }
+                stamp(feed, values);
+                pending.add(ContentProviderOperation.newUpdate(feed.contentUri)
+                        .withValues(values)
+                        .withSelection(where + " AND " + DataProvider.KEY_REGION_ID + "=?", new String[] { key, String.valueOf(region) })
+                        .build());
+                return true;
+            }
+        } finally {
+            row.close();
+        }
+
+        stamp(feed, values);
+        pending.add(ContentProviderOperation.newInsert(feed.contentUri)
+                .withValues(values)
+                .build());
+        return true;
+    }
+
+    private void remove(FeedDescriptor feed, int region, String key) {
+        pending.add(ContentProviderOperation.newDelete(feed.contentUri)
+                .withSelection(feed.getKey().column + "=? AND " + DataProvider.KEY_REGION_ID + "=?", new String[] { key, String.valueOf(region) })
+                .build());
+    }
+
+    private static void stamp(FeedDescriptor feed, ContentValues values) {
+        if (feed.getStampColumn() != null) {
+            values.put(feed.getStampColumn(), System.currentTimeMillis());
+        }
+    }
+
+    // The cursor's columns are the fields, in order
+    private static boolean differs(List<FeedDescriptor.Field> fields, Cursor row, ContentValues values) {
+        for (int i = 0; i < fields.size(); i++) {
+            FeedDescriptor.Field field = fields.get(i);
+            if (values.containsKey(field.column) && !field.type.matches(row, i, values, field.column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String intern(String label) {
+        String interned = labels.get(label);
+        if (interned == null) {
+            labels.put(label, label);
+            interned = label;
+        }
+        return interned;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.xoverto.matchthecity;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram of frame times for one screen while it is resumed, written to {@link MetricsStore}
+ * when the screen is paused.
+ * <p>
+ * Uses Choreographer frame callbacks, so it only records on API 16 and above. Frames are
+ * requested continuously while recording, which keeps vsync running when the screen is idle, so
+ * it is only used in sessions that record metrics.
+ */
+public class FrameTimeRecorder {
+
+    // Upper bounds of the histogram buckets in ms; the last bucket takes everything slower
+    private static final long[] BUCKETS_MS = { 17, 33, 50, 100, 250, 500 };
+
+    private final String screen;
+    private final int[] counts = new int[BUCKETS_MS.length + 1];
+    private Object callback;
+    private long lastFrameNanos;
+    private long maxFrameNanos;
+
+    public FrameTimeRecorder(String screen) {
+        this.screen = screen;
+    }
+
+    public void start() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || !MetricsStore.isEnabled() || callback != null) {
+            return;
+        }
+        startFrameCallbacks();
+    }
+
+    public void stop() {
+        if (callback == null) {
+            return;
+        }
+        stopFrameCallbacks();
+        save();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void startFrameCallbacks() {
+        lastFrameNanos = 0;
+        Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (lastFrameNanos != 0) {
+                    addFrame(frameTimeNanos - lastFrameNanos);
+                }
+                lastFrameNanos = frameTimeNanos;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
+        callback = frameCallback;
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void stopFrameCallbacks() {
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+        callback = null;
+    }
+
+    private void addFrame(long frameNanos) {
+        long frameMs = frameNanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKETS_MS.length && frameMs > BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        if (frameNanos > maxFrameNanos) {
+            maxFrameNanos = frameNanos;
+        }
+    }
+
+    private void save() {
+        int frames = 0;
+        for (int count : counts) {
+            frames += count;
+        }
+        if (frames == 0) {
+            return;
+        }
+
+        try {
+            JSONObject fields = new JSONObject();
+            fields.put("screen", screen);
+            fields.put("frames", frames);
+            fields.put("max_ms", maxFrameNanos / 1000000);
+            JSONArray bounds = new JSONArray();
+            for (long bound : BUCKETS_MS) {
+                bounds.put(bound);
+            }
+            JSONArray histogram = new JSONArray();
+            for (int count : counts) {
+                histogram.put(count);
+            }
+            fields.put("bucket_ms", bounds);
+            fields.put("histogram", histogram);
+            MetricsStore.record("frames", fields);
+        } catch (JSONException e) {
+            // Not recorded
+        }
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        maxFrameNanos = 0;
+    }
+}
@@ -34,27 +34,36 @@ public class GridAdapter extends BaseAdapter {
 
     @Override
     public long getItemId(int position) {
-        return 0;
+        return position;
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View gridCell;
+        ViewHolder holder;
 
-        //if (convertView == null) {
-        gridCell = new View(context);
-        gridCell = inflater.inflate(R.layout.home_cell, null);
+        if (convertView == null) {
+            LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            convertView = inflater.inflate(R.layout.home_cell, parent, false);
 
-        TextView txtName = (TextView) gridCell.findViewById(R.id.friend_name);
-        txtName.setText(getItem(position).getName());
+            holder = new ViewHolder();
+            holder.name = (TextView) convertView.findViewById(R.id.friend_name);
+            holder.image = (ImageView) convertView.findViewById(R.id.profileImg);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
 
-        ImageView profileImgView = (ImageView) gridCell.findViewById(R.id.profileImg);
-        //ImageLoaderHelper.getImageLoader(context).displayImage(getItem(position).getImageUrl(), profileImgView);
-        //} else {
-        //    gridCell = (View) convertView;
-        //}
+        GridOption option = getItem(position);
+        holder.name.setText(option.getName());
 
-        return gridCell;
+        // Cancels any load still running for the previous option shown in a recycled cell
+        ImageLoader.getInstance(context).displayImage(option.getImageUrl(), holder.image, option.getPlaceholderResource());
+
+        return convertView;
+    }
+
+    private static class ViewHolder {
+        TextView name;
+        ImageView image;
     }
 }
@@ -6,6 +6,8 @@ package com.xoverto.matchthecity;
 public class GridOption {
     private String name;
     private String imageUrl;
+    // Drawable shown until the image has loaded, or if it can't be
+    private int placeholderResource;
 
     public String getName() {
         return name;
@@ -22,4 +24,12 @@ public class GridOption {
     public void setImageUrl(String imageUrl) {
         this.imageUrl = imageUrl;
     }
+
+    public int getPlaceholderResource() {
+        return placeholderResource;
+    }
+
+    public void setPlaceholderResource(int placeholderResource) {
+        this.placeholderResource = placeholderResource;
+    }
 }
@@ -6,43 +6,87 @@ import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.Adapter;
-import android.widget.Button;
+import android.widget.AdapterView;
 import android.widget.GridView;
 
 import java.util.ArrayList;
 import java.util.List;
 
 
-public class HomeActivity extends ActionBarActivity {
+public class HomeActivity extends ActionBarActivity implements AdapterView.OnItemClickListener {
 
-    Button todayButton;
-    Button venuesButton;
+    // The options on the home screen, in grid order: name, image key and placeholder drawable
+    private static final int[] OPTION_NAMES = {
+            R.string.home_today,
+            R.string.home_advanced_search,
+            R.string.home_saved_searches,
+            R.string.home_fave_activities,
+            R.string.home_activity_prefs,
+            R.string.home_venues,
+            R.string.home_about
+    };
+    private static final int[] OPTION_IMAGES = {
+            R.drawable.home_whats_on,
+            R.drawable.home_advanced_search,
+            R.drawable.home_saved_searches,
+            R.drawable.home_fave_activities,
+            R.drawable.home_activity_prefs,
+            R.drawable.home_whats_on,
+            R.drawable.home_about
+    };
+
+    GridView homeGrid;
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.beginSection("HomeActivity.onCreate");
+        StartupTrace.launcherCreated();
         setContentView(R.layout.activity_home);
 
-        todayButton = (Button)findViewById(R.id.button_today);
-        venuesButton = (Button)findViewById(R.id.button_venues);
+        homeGrid = (GridView)findViewById(R.id.home_grid);
+        homeGrid.setAdapter(new GridAdapter(this, buildOptions()));
+        homeGrid.setOnItemClickListener(this);
 
-        todayButton.setOnClickListener(new View.OnClickListener() {
+        // Runs after the first layout and draw of the home screen
+        getWindow().getDecorView().post(new Runnable() {
             @Override
-            public void onClick(View v) {
-                Intent intent = new Intent(HomeActivity.this, OpportunitiesActivity.class);
-                startActivity(intent);
+            public void run() {
+                StartupTrace.milestone("launcher_drawn");
             }
         });
+        StartupTrace.endSection();
+    }
 
-        venuesButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                Intent intent = new Intent(HomeActivity.this, MainActivity.class);
+    // Each option shows its bundled icon; no option has an image URL, so nothing is fetched
+    private List<GridOption> buildOptions() {
+        List<GridOption> options = new ArrayList<GridOption>();
+        for (int i = 0; i < OPTION_NAMES.length; i++) {
+            GridOption option = new GridOption();
+            option.setName(getString(OPTION_NAMES[i]));
+            option.setPlaceholderResource(OPTION_IMAGES[i]);
+            options.add(option);
+        }
+        return options;
+    }
+
+    @Override
+    public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        switch (OPTION_NAMES[position]) {
+            case R.string.home_today: {
+                // Everything on from the start of today until midnight
+                long now = System.currentTimeMillis();
+                Intent intent = new Intent(HomeActivity.this, OpportunitiesActivity.class);
+                intent.putExtra(OpportunitiesActivity.EXTRA_OPPORTUNITIES_URI,
+                        DataProvider.occurrencesBetween(OccurrenceExpander.startOfDay(now), OccurrenceExpander.addDays(now, 1)));
                 startActivity(intent);
+                break;
             }
-        });
+            case R.string.home_venues:
+                startActivity(new Intent(HomeActivity.this, MainActivity.class));
+                break;
+        }
     }
 
 
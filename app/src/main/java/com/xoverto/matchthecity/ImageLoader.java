@@ -0,0 +1,318 @@
+package com.xoverto.matchthecity;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Loads remote images into ImageViews off the main thread.
+ * <p>
+ * Decoded bitmaps are kept in a size-bounded LRU memory cache and the downloaded bytes are kept in
+ * a disk cache, so a recycled cell or a second visit to a screen never hits the network again.
+ * Images are downsampled to the size of the target view when decoded. Any image (grid options,
+ * venues, activities) can be loaded through {@link #displayImage(String, ImageView)}.
+ */
+public class ImageLoader {
+
+    public static final String TAG = "IMAGE_LOADER";
+
+    private static final String DISK_CACHE_DIR = "images";
+    private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    private static ImageLoader instance;
+
+    private final Context context;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final File diskCacheDir;
+
+    // Outstanding request for each view, only touched from the main thread
+    private final Map<ImageView, LoadTask> pendingTasks = new WeakHashMap<ImageView, LoadTask>();
+
+    public static synchronized ImageLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ImageLoader(Context context) {
+        this.context = context;
+
+        // Use an eighth of the available heap for decoded bitmaps
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 8);
+        memoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+
+        diskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+    }
+
+    /**
+     * Display the image at url in imageView, decoded to fit the size the view will be laid out at.
+     */
+    public void displayImage(String url, ImageView imageView) {
+        displayImage(url, imageView, 0);
+    }
+
+    /**
+     * Display the image at url in imageView, showing the drawable placeholderResource until it has
+     * loaded and if it can't be loaded. Pass 0 for no placeholder.
+     */
+    public void displayImage(String url, ImageView imageView, int placeholderResource) {
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        displayImage(url, imageView, placeholderResource,
+                targetSize(imageView.getWidth(), imageView.getLayoutParams() != null ? imageView.getLayoutParams().width : 0, metrics.widthPixels),
+                targetSize(imageView.getHeight(), imageView.getLayoutParams() != null ? imageView.getLayoutParams().height : 0, metrics.heightPixels));
+    }
+
+    /**
+     * Display the image at url in imageView, downsampled to at least reqWidth x reqHeight.
+     * Any request still running for a recycled imageView is cancelled.
+     */
+    public void displayImage(String url, ImageView imageView, int placeholderResource, int reqWidth, int reqHeight) {
+        cancel(imageView);
+
+        if (url == null || url.length() == 0) {
+            showPlaceholder(imageView, placeholderResource);
+            return;
+        }
+
+        Bitmap bitmap = memoryCache.get(cacheKey(url, reqWidth, reqHeight));
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+
+        showPlaceholder(imageView, placeholderResource);
+        LoadTask task = new LoadTask(imageView, url, reqWidth, reqHeight);
+        pendingTasks.put(imageView, task);
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Cancel any outstanding request for imageView.
+     */
+    public void cancel(ImageView imageView) {
+        LoadTask task = pendingTasks.remove(imageView);
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    private static void showPlaceholder(ImageView imageView, int placeholderResource) {
+        if (placeholderResource != 0) {
+            imageView.setImageResource(placeholderResource);
+        } else {
+            imageView.setImageDrawable(null);
+        }
+    }
+
+    private static int targetSize(int measured, int layoutSize, int screenSize) {
+        if (measured > 0) {
+            return measured;
+        }
+        if (layoutSize > 0) {
+            return layoutSize;
+        }
+        if (layoutSize == ViewGroup.LayoutParams.WRAP_CONTENT) {
+            return 0;
+        }
+        return screenSize;
+    }
+
+    private static String cacheKey(String url, int reqWidth, int reqHeight) {
+        return url + "#" + reqWidth + "x" + reqHeight;
+    }
+
+    private File diskCacheFile(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(diskCacheDir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            return new File(diskCacheDir, Integer.toHexString(url.hashCode()));
+        } catch (IOException e) {
+            return new File(diskCacheDir, Integer.toHexString(url.hashCode()));
+        }
+    }
+
+    /**
+     * Download url into the disk cache unless it is there already, giving up if task is cancelled.
+     *
+     * @return the cached file, or null if it couldn't be fetched or task was cancelled
+     */
+    private File fetchToDisk(String url, AsyncTask<?, ?, ?> task) throws IOException {
+        File file = diskCacheFile(url);
+        if (file.exists()) {
+            // Touch the file so the trim keeps recently used images
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        diskCacheDir.mkdirs();
+        // Each download has its own temp file, as two cells may fetch the same url at once
+        File temp = File.createTempFile(file.getName(), ".tmp", diskCacheDir);
+        InputStream in = null;
+        OutputStream out = null;
+        boolean complete = false;
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            in = connection.getInputStream();
+            out = new FileOutputStream(temp);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (task.isCancelled()) {
+                    return null;
+                }
+                out.write(buffer, 0, read);
+            }
+            complete = true;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+            if (!complete) {
+                // Any rest of the body is unread, so the connection can't be reused
+                connection.disconnect();
+                temp.delete();
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return null;
+        }
+        trimDiskCache();
+        return file;
+    }
+
+    private synchronized void trimDiskCache() {
+        File[] files = diskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_CACHE_SIZE) {
+            return;
+        }
+
+        // Remove the least recently used files first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > DISK_CACHE_SIZE; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private static Bitmap decodeSampled(File file, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+
+        options.inSampleSize = 1;
+        if (reqWidth > 0 && reqHeight > 0) {
+            int halfWidth = options.outWidth / 2;
+            int halfHeight = options.outHeight / 2;
+            while (halfWidth / options.inSampleSize >= reqWidth && halfHeight / options.inSampleSize >= reqHeight) {
+                options.inSampleSize *= 2;
+            }
+        }
+
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    private class LoadTask extends AsyncTask<Void, Void, Bitmap> {
+        private final ImageView imageView;
+        private final String url;
+        private final int reqWidth;
+        private final int reqHeight;
+
+        LoadTask(ImageView imageView, String url, int reqWidth, int reqHeight) {
+            this.imageView = imageView;
+            this.url = url;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            try {
+                File file = fetchToDisk(url, this);
+                if (file == null || isCancelled()) {
+                    return null;
+                }
+                Bitmap bitmap = decodeSampled(file, reqWidth, reqHeight);
+                if (bitmap != null) {
+                    memoryCache.put(cacheKey(url, reqWidth, reqHeight), bitmap);
+                }
+                return bitmap;
+            } catch (IOException e) {
+                Log.d(TAG, "IOException loading " + url);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (pendingTasks.get(imageView) != this) {
+                // The view has been recycled for a different image
+                return;
+            }
+            pendingTasks.remove(imageView);
+            if (bitmap != null) {
+                imageView.setImageBitmap(bitmap);
+            }
+        }
+    }
+}
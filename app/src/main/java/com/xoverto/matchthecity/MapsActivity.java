@@ -25,12 +25,20 @@ import java.util.Date;
 public class MapsActivity extends FragmentActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     private GoogleMap mMap; // Might be null if Google Play services APK is not available.
+    private Cursor mVenues; // Venues loaded before the map was ready
+
+    // Sets up the map after the first frame so the layout shows without waiting for it
+    private final Runnable mSetUpMapRunnable = new Runnable() {
+        @Override
+        public void run() {
+            setUpMapIfNeeded();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_maps);
-        setUpMapIfNeeded();
 
         getLoaderManager().initLoader(0, null, this);
 
@@ -40,6 +48,9 @@ public class MapsActivity extends FragmentActivity implements LoaderManager.Load
 
             @Override
             public void onCheckedChanged(RadioGroup group, int checkedId) {
+                if(mMap == null) {
+                    return;
+                }
                 if(checkedId == R.id.rb_normal) {
                     mMap.setMapType(GoogleMap.MAP_TYPE_NORMAL);
                 }else if(checkedId == R.id.rb_hybrid) {
@@ -56,7 +67,13 @@ public class MapsActivity extends FragmentActivity implements LoaderManager.Load
     @Override
     protected void onResume() {
         super.onResume();
-        setUpMapIfNeeded();
+        getWindow().getDecorView().post(mSetUpMapRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        getWindow().getDecorView().removeCallbacks(mSetUpMapRunnable);
     }
 
     /**
@@ -82,7 +99,12 @@ public class MapsActivity extends FragmentActivity implements LoaderManager.Load
                     .getMap();
             // Check if we were successful in obtaining the map.
             if (mMap != null) {
+                StartupTrace.beginSection("MapsActivity.setUpMap");
                 setUpMap();
+                StartupTrace.endSection();
+                if (mVenues != null) {
+                    drawVenues(mVenues);
+                }
             }
         }
     }
@@ -122,48 +144,38 @@ public class MapsActivity extends FragmentActivity implements LoaderManager.Load
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                DataProvider.KEY_ID,
-                DataProvider.KEY_NAME,
-                DataProvider.KEY_VENUE_ID,
-                DataProvider.KEY_LOCATION_LAT,
-                DataProvider.KEY_LOCATION_LNG,
-                DataProvider.KEY_UPDATED
-        };
         CursorLoader loader = new CursorLoader(this,
                 DataProvider.CONTENT_URI_VENUES,
-                projection, null, null, null);
+                VenueRow.PROJECTION, null, null, null);
 
         return loader;
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        mVenues = cursor;
+        if (mMap != null) {
+            drawVenues(cursor);
+        }
+    }
 
-        int locationCount = 0;
-        double lat = 0;
-        double lng = 0;
-        long updated = 0;
-        String name = "";
-
-        locationCount = cursor.getCount();
+    private void drawVenues(Cursor cursor) {
+        int locationCount = cursor.getCount();
         cursor.moveToFirst();
 
         mMap.clear();
 
+        VenueRow row = new VenueRow().wrap(cursor);
+        DateFormat dateF = DateFormat.getDateTimeInstance();
+        Date updated = new Date();
 
         for(int i = 0; i < locationCount; i++) {
-            lat = cursor.getDouble(cursor.getColumnIndex(DataProvider.KEY_LOCATION_LAT));
-            lng = cursor.getDouble(cursor.getColumnIndex(DataProvider.KEY_LOCATION_LNG));
-            name = cursor.getString(cursor.getColumnIndex(DataProvider.KEY_NAME));
-            updated = cursor.getLong(cursor.getColumnIndex(DataProvider.KEY_UPDATED));
-
-            LatLng location = new LatLng(lat, lng);
+            LatLng location = new LatLng(row.getLatitude(), row.getLongitude());
 
-            DateFormat dateF = DateFormat.getDateTimeInstance();
-            String text = "Last Updated: " + dateF.format(new Date(updated));
+            updated.setTime(row.getUpdated());
+            String text = "Last Updated: " + dateF.format(updated);
 
-            drawMarker(location, name, text);
+            drawMarker(location, row.getName(), text);
 
             cursor.moveToNext();
         }
@@ -172,5 +184,6 @@ public class MapsActivity extends FragmentActivity implements LoaderManager.Load
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        mVenues = null;
     }
 }
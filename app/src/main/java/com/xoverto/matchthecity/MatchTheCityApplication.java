@@ -0,0 +1,100 @@
+package com.xoverto.matchthecity;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.StrictMode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sets up the performance instrumentation for the process.
+ * <p>
+ * Debug builds run StrictMode, logging disk and network access on the main thread and leaked
+ * SQLite objects. In sessions that record metrics (see {@link MetricsStore}) every activity gets a
+ * {@link FrameTimeRecorder} while it is resumed, so the frame times of a screen include the
+ * fragments it hosts.
+ */
+public class MatchTheCityApplication extends Application {
+
+    private final Map<Activity, FrameTimeRecorder> frameRecorders = new HashMap<Activity, FrameTimeRecorder>();
+
+    @Override
+    protected void attachBaseContext(Context base) {
+        // The earliest app code that runs, before the content providers are created
+        StartupTrace.markProcessStart();
+        super.attachBaseContext(base);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.beginSection("MatchTheCityApplication.onCreate");
+
+        MetricsStore.init(this);
+
+        if (BuildConfig.DEBUG) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+
+        if (MetricsStore.isEnabled()) {
+            registerActivityLifecycleCallbacks(new FrameTimeCallbacks());
+        }
+
+        StartupTrace.milestone("application_created");
+        StartupTrace.endSection();
+    }
+
+    private class FrameTimeCallbacks implements ActivityLifecycleCallbacks {
+        @Override
+        public void onActivityResumed(Activity activity) {
+            FrameTimeRecorder recorder = frameRecorders.get(activity);
+            if (recorder == null) {
+                recorder = new FrameTimeRecorder(activity.getClass().getSimpleName());
+                frameRecorders.put(activity, recorder);
+            }
+            recorder.start();
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            FrameTimeRecorder recorder = frameRecorders.get(activity);
+            if (recorder != null) {
+                recorder.stop();
+            }
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            frameRecorders.remove(activity);
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.xoverto.matchthecity;
+
+import android.content.Context;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local store for performance metrics (frame times, main thread I/O, startup timings).
+ * <p>
+ * Records are appended as JSON lines to files/metrics/metrics-v&lt;versionCode&gt;.jsonl on a
+ * background thread, one file per build so results can be pulled and compared between builds:
+ * <pre>adb shell run-as com.xoverto.matchthecity cat files/metrics/metrics-v1.jsonl</pre>
+ * Recording is always on in debug builds and on for a sample of sessions in release builds.
+ */
+public class MetricsStore {
+
+    public static final String TAG = "METRICS";
+
+    // One release session in this many records metrics
+    private static final int RELEASE_SAMPLE_RATE = 20;
+    private static final long MAX_FILE_SIZE = 512 * 1024;
+    private static final int MAX_STACK_FRAMES = 16;
+
+    private static MetricsStore instance;
+
+    private final File file;
+    private final boolean enabled;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /**
+     * Set up the store for this process, deciding whether this session is sampled.
+     */
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            boolean enabled = BuildConfig.DEBUG || new Random().nextInt(RELEASE_SAMPLE_RATE) == 0;
+            File dir = new File(context.getFilesDir(), "metrics");
+            instance = new MetricsStore(new File(dir, "metrics-v" + BuildConfig.VERSION_CODE + ".jsonl"), enabled);
+        }
+    }
+
+    /**
+     * True if this session records metrics. Check before doing any work to collect them.
+     */
+    public static boolean isEnabled() {
+        MetricsStore store = instance;
+        return store != null && store.enabled;
+    }
+
+    /**
+     * Append a record of the given type. Does nothing unless this session is sampled.
+     */
+    public static void record(String type, JSONObject fields) {
+        MetricsStore store = instance;
+        if (store == null || !store.enabled) {
+            return;
+        }
+        try {
+            fields.put("type", type);
+            fields.put("time", System.currentTimeMillis());
+            fields.put("build", BuildConfig.VERSION_CODE);
+        } catch (JSONException e) {
+            return;
+        }
+        store.append(fields.toString());
+    }
+
+    /**
+     * Record an access to the provider or disk made on the main thread, with the stack that made it.
+     */
+    public static void checkMainThread(String operation, Object target) {
+        if (!isEnabled() || Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        JSONArray frames = new JSONArray();
+        String caller = null;
+        // Skip this method and the one checking
+        for (int i = 2; i < stack.length && frames.length() < MAX_STACK_FRAMES; i++) {
+            String frame = stack[i].toString();
+            frames.put(frame);
+            if (caller == null && frame.startsWith("com.xoverto.") && !frame.startsWith(DataProvider.class.getName())) {
+                caller = frame;
+            }
+        }
+        Log.w(TAG, "Main thread " + operation + " " + target + " from " + caller);
+
+        try {
+            JSONObject fields = new JSONObject();
+            fields.put("operation", operation);
+            fields.put("target", String.valueOf(target));
+            fields.put("caller", caller);
+            fields.put("stack", frames);
+            record("main_thread_io", fields);
+        } catch (JSONException e) {
+            // Not recorded
+        }
+    }
+
+    private MetricsStore(File file, boolean enabled) {
+        this.file = file;
+        this.enabled = enabled;
+    }
+
+    private void append(final String line) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                file.getParentFile().mkdirs();
+                if (file.length() > MAX_FILE_SIZE) {
+                    // Keep one older file rather than growing without bound
+                    File old = new File(file.getPath() + ".old");
+                    old.delete();
+                    file.renameTo(old);
+                }
+                try {
+                    Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+                    try {
+                        out.write(line);
+                        out.write('\n');
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Unable to write metrics to " + file);
+                }
+            }
+        });
+    }
+}
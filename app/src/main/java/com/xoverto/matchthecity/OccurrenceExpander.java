@@ -0,0 +1,139 @@
+package com.xoverto.matchthecity;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the weekly schedule of an opportunity (day of week plus start and end times) into the
+ * concrete dated occurrences that fall within a range of time.
+ */
+public class OccurrenceExpander {
+
+    private static final Pattern TIME_PATTERN = Pattern.compile("(\\d{1,2}):(\\d{2})");
+    private static final String[] DAY_NAMES = { "sun", "mon", "tue", "wed", "thu", "fri", "sat" };
+
+    /**
+     * Return the start of the local day containing time.
+     */
+    public static long startOfDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Return the start of the local day the given number of days after the day containing time.
+     */
+    public static long addDays(long time, int days) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(startOfDay(time));
+        calendar.add(Calendar.DAY_OF_MONTH, days);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Expand a weekly schedule into occurrences starting in [from, to).
+     *
+     * @return start and end times of each occurrence, one pair of longs per occurrence, or an
+     * empty array if the schedule can't be understood
+     */
+    public static long[] expand(String dayOfWeek, String startTime, String endTime, long from, long to) {
+        int day = parseDayOfWeek(dayOfWeek);
+        int startMinutes = parseMinutes(startTime);
+        int endMinutes = parseMinutes(endTime);
+        if (day < 0 || startMinutes < 0) {
+            return new long[0];
+        }
+        if (endMinutes < 0) {
+            endMinutes = startMinutes;
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(startOfDay(from));
+        int offset = (day - calendar.get(Calendar.DAY_OF_WEEK) + 7) % 7;
+        calendar.add(Calendar.DAY_OF_MONTH, offset);
+
+        List<Long> times = new ArrayList<Long>();
+        while (true) {
+            long dayStart = calendar.getTimeInMillis();
+            long start = atMinutes(dayStart, startMinutes);
+            if (start >= to) {
+                break;
+            }
+
+            // An end time before the start time finishes the next day
+            long end = atMinutes(endMinutes < startMinutes ? addDays(dayStart, 1) : dayStart, endMinutes);
+            if (start >= from) {
+                times.add(start);
+                times.add(end);
+            }
+            calendar.add(Calendar.DAY_OF_MONTH, 7);
+        }
+
+        long[] result = new long[times.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = times.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Parse a day name ("Monday", "mon") or number (0 or 7 for Sunday through 6 for Saturday) into
+     * a {@link Calendar} day of week, or -1.
+     */
+    static int parseDayOfWeek(String day) {
+        if (day == null) {
+            return -1;
+        }
+        String value = day.trim().toLowerCase();
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            if (value.startsWith(DAY_NAMES[i])) {
+                return Calendar.SUNDAY + i;
+            }
+        }
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= 0 && number <= 7) {
+                return Calendar.SUNDAY + number % 7;
+            }
+        } catch (NumberFormatException e) {
+            // Not a number either
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the time of day from "18:30" or a timestamp such as "2000-01-01T18:30:00.000Z" into
+     * minutes after midnight, or -1.
+     */
+    static int parseMinutes(String time) {
+        if (time == null) {
+            return -1;
+        }
+        Matcher matcher = TIME_PATTERN.matcher(time);
+        if (!matcher.find()) {
+            return -1;
+        }
+        int hours = Integer.parseInt(matcher.group(1));
+        int minutes = Integer.parseInt(matcher.group(2));
+        if (hours > 23 || minutes > 59) {
+            return -1;
+        }
+        return hours * 60 + minutes;
+    }
+
+    private static long atMinutes(long dayStart, int minutes) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(dayStart);
+        calendar.set(Calendar.HOUR_OF_DAY, minutes / 60);
+        calendar.set(Calendar.MINUTE, minutes % 60);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -3,6 +3,7 @@ package com.xoverto.matchthecity;
 import android.support.v7.app.ActionBarActivity;
 import android.support.v7.app.ActionBar;
 import android.support.v4.app.Fragment;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -15,13 +16,16 @@ import android.os.Build;
 
 public class OpportunitiesActivity extends ActionBarActivity implements OpportunityFragment.OnFragmentInteractionListener {
 
+    // Optional DataProvider URI to list instead of all opportunities
+    public final static String EXTRA_OPPORTUNITIES_URI = "com.xoverto.matchthecity.OPPORTUNITIES_URI";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_opportunities);
         if (savedInstanceState == null) {
             getFragmentManager().beginTransaction()
-                    .add(R.id.container, new OpportunityFragment())
+                    .add(R.id.container, OpportunityFragment.newInstance((Uri) getIntent().getParcelableExtra(EXTRA_OPPORTUNITIES_URI)))
                     .commit();
         }
     }
@@ -2,12 +2,12 @@ package com.xoverto.matchthecity;
 
 import android.app.Activity;
 import android.app.LoaderManager;
-import android.content.ContentResolver;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Bundle;
 import android.app.Fragment;
 import android.view.LayoutInflater;
@@ -37,8 +37,13 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
 
     public static final String TAG = "OPPORTUNITIES";
 
+    private static final String ARG_URI = "uri";
+
     private OnFragmentInteractionListener mListener;
-    private SimpleCursorAdapter mCursorAdapter;
+    private DiffCursorAdapter mCursorAdapter;
+    private boolean mRefreshRequested;
+    private SyncProgress.EmptyViewUpdater mProgressUpdater;
+    private final OpportunityRow mRow = new OpportunityRow();
 
     /**
      * The fragment's ListView/GridView.
@@ -58,6 +63,17 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
         return fragment;
     }
 
+    /**
+     * Create a fragment listing the opportunities at uri, e.g. the drill down URI for an activity.
+     */
+    public static OpportunityFragment newInstance(Uri uri) {
+        OpportunityFragment fragment = new OpportunityFragment();
+        Bundle args = new Bundle();
+        args.putParcelable(ARG_URI, uri);
+        fragment.setArguments(args);
+        return fragment;
+    }
+
     /**
      * Mandatory empty constructor for the fragment manager to instantiate the
      * fragment (e.g. upon screen orientation changes).
@@ -76,14 +92,14 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
                              Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_venue, container, false);
 
-        // Set the adapter
-        mCursorAdapter = new SimpleCursorAdapter(getActivity(),
+        // Set the adapter. The venue, activity and sub activity labels come with the query.
+        mCursorAdapter = new DiffCursorAdapter(getActivity(),
                 R.layout.opportunity_list_item,
                 null,
                 new String[] { DataProvider.KEY_OPPORTUNITY_NAME,
-                        DataProvider.KEY_OPPORTUNITY_VENUE_ID,
-                        DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID,
-                        DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID,
+                        DataProvider.KEY_OPPORTUNITY_VENUE_NAME,
+                        DataProvider.KEY_OPPORTUNITY_ACTIVITY_TITLE,
+                        DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_TITLE,
                         DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK,
                         DataProvider.KEY_OPPORTUNITY_START_TIME,
                         DataProvider.KEY_OPPORTUNITY_END_TIME,
@@ -94,86 +110,29 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
 
         mCursorAdapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
             public boolean setViewValue(View view, Cursor cursor, int column) {
-
-                if (view.getId() == R.id.venue) {
-                    int venue_id = cursor.getInt(cursor.getColumnIndex(DataProvider.KEY_OPPORTUNITY_VENUE_ID));
-
-                    ContentResolver cr = view.getContext().getContentResolver();
-
-                    // Construct a where clause to make sure we don't already have this carpark in the provider
-                    String w = DataProvider.KEY_VENUE_ID + " = '" + venue_id + "'";
-                    String label = "unknown venue";
-
-                    // If the carpark is new, insert it into the provider
-                    Cursor query = cr.query(DataProvider.CONTENT_URI_VENUES, null, w, null, null);
-
-                    if(query.getCount() > 0) {
-                        query.moveToFirst();
-                        label = query.getString(query.getColumnIndex(DataProvider.KEY_NAME));
+                // Fall back for labels of rows that aren't in the provider (yet)
+                if (cursor.isNull(column)) {
+                    switch (view.getId()) {
+                        case R.id.venue:
+                            ((TextView) view).setText(R.string.unknown_venue);
+                            return true;
+                        case R.id.activity:
+                            ((TextView) view).setText(R.string.unknown_activity);
+                            return true;
+                        case R.id.sub_activity:
+                            ((TextView) view).setText(R.string.unknown_sub_activity);
+                            return true;
                     }
-                    query.close();
-
-
-                    TextView text = (TextView)view.findViewById(R.id.venue);
-                    text.setText(label);
-
-                    return true;
                 }
-
-                if (view.getId() == R.id.activity) {
-                    int activity_id = cursor.getInt(cursor.getColumnIndex(DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID));
-
-                    ContentResolver cr = view.getContext().getContentResolver();
-
-                    // Construct a where clause to make sure we don't already have this carpark in the provider
-                    String w = DataProvider.KEY_ACTIVITY_ID + " = '" + activity_id + "'";
-                    String label = "unknown activity";
-
-                    // If the carpark is new, insert it into the provider
-                    Cursor query = cr.query(DataProvider.CONTENT_URI_ACTIVITIES, null, w, null, null);
-
-                    if(query.getCount() > 0) {
-                        query.moveToFirst();
-                        label = query.getString(query.getColumnIndex(DataProvider.KEY_ACTIVITY_TITLE));
-                    }
-                    query.close();
-
-
-                    TextView text = (TextView)view.findViewById(R.id.activity);
-                    text.setText(label);
-
-                    return true;
-                }
-
-                if (view.getId() == R.id.sub_activity) {
-                    int sub_activity_id = cursor.getInt(cursor.getColumnIndex(DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID));
-
-                    ContentResolver cr = view.getContext().getContentResolver();
-
-                    // Construct a where clause to make sure we don't already have this carpark in the provider
-                    String w = DataProvider.KEY_SUB_ACTIVITY_ID + " = '" + sub_activity_id + "'";
-                    String label = "unknown sub activity";
-
-                    // If the carpark is new, insert it into the provider
-                    Cursor query = cr.query(DataProvider.CONTENT_URI_SUB_ACTIVITIES, null, w, null, null);
-
-                    if(query.getCount() > 0) {
-                        query.moveToFirst();
-                        label = query.getString(query.getColumnIndex(DataProvider.KEY_SUB_ACTIVITY_TITLE));
-                    }
-                    query.close();
-
-                    TextView text = (TextView)view.findViewById(R.id.sub_activity);
-                    text.setText(label);
-
-                    return true;
-                }
-
                 return false;
             }
         });
 
         mListView = (AbsListView) view.findViewById(android.R.id.list);
+        // Show how far the sync has got while there is nothing to list
+        TextView emptyView = (TextView) view.findViewById(android.R.id.empty);
+        mListView.setEmptyView(emptyView);
+        mProgressUpdater = new SyncProgress.EmptyViewUpdater(FeedDescriptor.OPPORTUNITIES.name, emptyView);
         ((AdapterView<ListAdapter>) mListView).setAdapter(mCursorAdapter);
 
         // Set OnItemClickListener so we can be notified on item clicks
@@ -181,8 +140,6 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
 
         getLoaderManager().initLoader(0, null, this);
 
-        refreshVenues();
-
         return view;
     }
 
@@ -208,13 +165,23 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
         mListener = null;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        mProgressUpdater.register(getActivity());
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mProgressUpdater.unregister(getActivity());
+    }
+
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 
-        Cursor cursor = (Cursor)mCursorAdapter.getItem(position);
-        String value = cursor.getString(cursor
-                .getColumnIndex(DataProvider.KEY_OPPORTUNITY_NAME));
+        String value = mRow.wrap((Cursor) mCursorAdapter.getItem(position)).getName();
 
 
         Toast.makeText(parent.getContext(), value, Toast.LENGTH_SHORT).show();
@@ -255,20 +222,17 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                DataProvider.KEY_ID,
-                DataProvider.KEY_OPPORTUNITY_NAME,
-                DataProvider.KEY_OPPORTUNITY_VENUE_ID,
-                DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID,
-                DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID,
-                DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK,
-                DataProvider.KEY_OPPORTUNITY_START_TIME,
-                DataProvider.KEY_OPPORTUNITY_END_TIME,
-                DataProvider.KEY_OPPORTUNITY_DESCRIPTION
-        };
-        CursorLoader loader = new CursorLoader(getActivity(),
-                DataProvider.CONTENT_URI_OPPORTUNITIES,
-                projection, null, null, null);
+        Uri uri = null;
+        if (getArguments() != null) {
+            uri = getArguments().getParcelable(ARG_URI);
+        }
+        if (uri == null) {
+            uri = DataProvider.CONTENT_URI_OPPORTUNITIES;
+        }
+
+        CursorLoader loader = new DiffCursorLoader(getActivity(),
+                uri,
+                OpportunityRow.PROJECTION, null, null, null, mCursorAdapter.getBoundColumns());
 
         return loader;
     }
@@ -277,6 +241,14 @@ public class OpportunityFragment extends Fragment implements AbsListView.OnItemC
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         mCursorAdapter.swapCursor(cursor);
 
+        // Sync once there is something on screen, rather than on the launch path
+        if (cursor != null && cursor.getCount() > 0) {
+            StartupTrace.firstContent(getClass().getSimpleName());
+        }
+        if (!mRefreshRequested) {
+            mRefreshRequested = true;
+            DataUpdateService.requestRefreshIfStale(getActivity());
+        }
     }
 
     @Override
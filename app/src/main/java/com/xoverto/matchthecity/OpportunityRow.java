@@ -0,0 +1,118 @@
+package com.xoverto.matchthecity;
+
+import android.database.Cursor;
+
+/**
+ * Typed view of an opportunity row from {@link DataProvider}, for a cursor queried with {@link #PROJECTION}.
+ * <p>
+ * The column indices are resolved once per cursor, so one instance can be reused for every row
+ * while binding or iterating without any per row lookups or allocation.
+ */
+public final class OpportunityRow {
+
+    public static final String[] PROJECTION = {
+            DataProvider.KEY_ID,
+            DataProvider.KEY_OPPORTUNITY_ID,
+            DataProvider.KEY_OPPORTUNITY_NAME,
+            DataProvider.KEY_OPPORTUNITY_VENUE_ID,
+            DataProvider.KEY_OPPORTUNITY_VENUE_NAME,
+            DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID,
+            DataProvider.KEY_OPPORTUNITY_ACTIVITY_TITLE,
+            DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID,
+            DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_TITLE,
+            DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK,
+            DataProvider.KEY_OPPORTUNITY_START_TIME,
+            DataProvider.KEY_OPPORTUNITY_END_TIME,
+            DataProvider.KEY_OPPORTUNITY_DESCRIPTION
+    };
+
+    private Cursor cursor;
+    private int idColumn;
+    private int opportunityIdColumn;
+    private int nameColumn;
+    private int venueIdColumn;
+    private int venueNameColumn;
+    private int activityIdColumn;
+    private int activityTitleColumn;
+    private int subActivityIdColumn;
+    private int subActivityTitleColumn;
+    private int dayOfWeekColumn;
+    private int startTimeColumn;
+    private int endTimeColumn;
+    private int descriptionColumn;
+
+    /**
+     * Read the current row of cursor, resolving the column indices if it is a new cursor.
+     */
+    public OpportunityRow wrap(Cursor cursor) {
+        if (cursor != this.cursor) {
+            this.cursor = cursor;
+            idColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ID);
+            opportunityIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_ID);
+            nameColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_NAME);
+            venueIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_VENUE_ID);
+            venueNameColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_VENUE_NAME);
+            activityIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID);
+            activityTitleColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_ACTIVITY_TITLE);
+            subActivityIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID);
+            subActivityTitleColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_TITLE);
+            dayOfWeekColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK);
+            startTimeColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_START_TIME);
+            endTimeColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_END_TIME);
+            descriptionColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_OPPORTUNITY_DESCRIPTION);
+        }
+        return this;
+    }
+
+    public long getId() {
+        return cursor.getLong(idColumn);
+    }
+
+    public String getOpportunityId() {
+        return cursor.getString(opportunityIdColumn);
+    }
+
+    public String getName() {
+        return cursor.getString(nameColumn);
+    }
+
+    public String getVenueId() {
+        return cursor.getString(venueIdColumn);
+    }
+
+    public String getVenueName() {
+        return cursor.getString(venueNameColumn);
+    }
+
+    public String getActivityId() {
+        return cursor.getString(activityIdColumn);
+    }
+
+    public String getActivityTitle() {
+        return cursor.getString(activityTitleColumn);
+    }
+
+    public String getSubActivityId() {
+        return cursor.getString(subActivityIdColumn);
+    }
+
+    public String getSubActivityTitle() {
+        return cursor.getString(subActivityTitleColumn);
+    }
+
+    public String getDayOfWeek() {
+        return cursor.getString(dayOfWeekColumn);
+    }
+
+    public String getStartTime() {
+        return cursor.getString(startTimeColumn);
+    }
+
+    public String getEndTime() {
+        return cursor.getString(endTimeColumn);
+    }
+
+    public String getDescription() {
+        return cursor.getString(descriptionColumn);
+    }
+}
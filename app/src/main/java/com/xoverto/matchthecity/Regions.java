@@ -0,0 +1,56 @@
+package com.xoverto.matchthecity;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * The regions (cities) whose feeds are synced and kept, and the active region the lists show.
+ * <p>
+ * Every region in R.array.regions is synced and stored side by side, keyed by region id, so
+ * switching region shows data already on the device.
+ */
+public class Regions {
+
+    private static final String PREF_ACTIVE_REGION = "active_region";
+
+    private Regions() {
+    }
+
+    public static int[] getAll(Context context) {
+        return context.getResources().getIntArray(R.array.regions);
+    }
+
+    public static int getActive(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getInt(PREF_ACTIVE_REGION, context.getResources().getInteger(R.integer.default_region));
+    }
+
+    /**
+     * Switch the lists to region, which must be one of {@link #getAll(Context)}.
+     */
+    public static void setActive(Context context, int region) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit().putInt(PREF_ACTIVE_REGION, region).commit();
+
+        // Every list is scoped to the active region, so they all need reloading
+        ContentResolver cr = context.getContentResolver();
+        cr.notifyChange(DataProvider.CONTENT_URI_VENUES, null);
+        cr.notifyChange(DataProvider.CONTENT_URI_ACTIVITIES, null);
+        cr.notifyChange(DataProvider.CONTENT_URI_SUB_ACTIVITIES, null);
+        cr.notifyChange(DataProvider.CONTENT_URI_OPPORTUNITIES, null);
+        cr.notifyChange(DataProvider.CONTENT_URI_DAY_COUNTS, null);
+        cr.notifyChange(DataProvider.CONTENT_URI_OCCURRENCES, null);
+
+        // Rebuilds the search index for the new region
+        DataUpdateService.requestRefreshIfStale(context);
+    }
+
+    /**
+     * Format a feed path from strings.xml, e.g. /regions/%1$d/venues.json, for region.
+     */
+    public static String feedPath(Context context, int pathResource, int region) {
+        return context.getString(pathResource, region);
+    }
+}
@@ -0,0 +1,178 @@
+package com.xoverto.matchthecity;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the opportunities a sync inserts or changes against the saved searches and favourite
+ * activities, collecting the new matches of each search.
+ * <p>
+ * The searches are compiled once per sync into predicates indexed by activity, so each changed
+ * opportunity is only tested against the searches for its activity plus those that don't name
+ * one. The work is proportional to the size of the change rather than searches times catalogue.
+ */
+public class SearchMatcher {
+
+    public static final String TAG = "SEARCH_MATCHER";
+
+    private static final String[] PROJECTION = {
+            DataProvider.KEY_ID,
+            DataProvider.KEY_SEARCH_ACTIVITY_ID,
+            DataProvider.KEY_SEARCH_SUB_ACTIVITY_ID,
+            DataProvider.KEY_SEARCH_VENUE_ID,
+            DataProvider.KEY_SEARCH_DAY_OF_WEEK,
+            DataProvider.KEY_SEARCH_KEYWORDS
+    };
+
+    private final Map<String, List<Predicate>> byActivity = new HashMap<String, List<Predicate>>();
+    private final List<Predicate> anyActivity = new ArrayList<Predicate>();
+
+    // New matches of each search, keyed by search _id, in the order they were found
+    private final Map<Long, List<ContentValues>> matches = new LinkedHashMap<Long, List<ContentValues>>();
+
+    /**
+     * Compile the saved searches currently in the provider.
+     */
+    public static SearchMatcher load(ContentResolver cr) {
+        SearchMatcher matcher = new SearchMatcher();
+        Cursor cursor = cr.query(DataProvider.CONTENT_URI_SAVED_SEARCHES, PROJECTION, null, null, null);
+        if (cursor == null) {
+            return matcher;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                matcher.add(new Predicate(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getString(4), cursor.getString(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return matcher;
+    }
+
+    private void add(Predicate predicate) {
+        if (predicate.activityId == null) {
+            anyActivity.add(predicate);
+            return;
+        }
+        List<Predicate> predicates = byActivity.get(predicate.activityId);
+        if (predicates == null) {
+            predicates = new ArrayList<Predicate>();
+            byActivity.put(predicate.activityId, predicates);
+        }
+        predicates.add(predicate);
+    }
+
+    public boolean isEmpty() {
+        return byActivity.isEmpty() && anyActivity.isEmpty();
+    }
+
+    /**
+     * Test an opportunity the sync has just inserted or changed against every search that could match it.
+     */
+    public void match(ContentValues opportunity) {
+        if (isEmpty()) {
+            return;
+        }
+        // Opportunity ids are only unique within a region
+        ContentValues match = new ContentValues();
+        match.put(DataProvider.KEY_OPPORTUNITY_ID, opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_ID));
+        match.put(DataProvider.KEY_REGION_ID, opportunity.getAsInteger(DataProvider.KEY_REGION_ID));
+        List<Predicate> candidates = byActivity.get(opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID));
+        if (candidates != null) {
+            match(candidates, match, opportunity);
+        }
+        match(anyActivity, match, opportunity);
+    }
+
+    private void match(List<Predicate> predicates, ContentValues match, ContentValues opportunity) {
+        for (Predicate predicate : predicates) {
+            if (predicate.matches(opportunity)) {
+                List<ContentValues> found = matches.get(predicate.searchId);
+                if (found == null) {
+                    found = new ArrayList<ContentValues>();
+                    matches.put(predicate.searchId, found);
+                }
+                found.add(match);
+            }
+        }
+    }
+
+    /**
+     * Store the matches found since the last commit, returning how many there were.
+     */
+    public int commit(ContentResolver cr) {
+        int count = 0;
+        for (Map.Entry<Long, List<ContentValues>> entry : matches.entrySet()) {
+            List<ContentValues> found = entry.getValue();
+            ContentValues[] values = found.toArray(new ContentValues[found.size()]);
+            Uri uri = Uri.withAppendedPath(ContentUris.withAppendedId(DataProvider.CONTENT_URI_SAVED_SEARCHES, entry.getKey()),
+                    DataProvider.PATH_MATCHES);
+            count += cr.bulkInsert(uri, values);
+        }
+        Log.d(TAG, count + " new matches for " + matches.size() + " searches");
+        matches.clear();
+        return count;
+    }
+
+    /**
+     * A saved search compiled to its non-empty criteria. Every criterion given must hold.
+     */
+    private static class Predicate {
+        final long searchId;
+        final String activityId;
+        final String subActivityId;
+        final String venueId;
+        final int dayOfWeek;
+        final String[] keywords;
+
+        Predicate(long searchId, String activityId, String subActivityId, String venueId, String dayOfWeek, String keywords) {
+            this.searchId = searchId;
+            this.activityId = emptyToNull(activityId);
+            this.subActivityId = emptyToNull(subActivityId);
+            this.venueId = emptyToNull(venueId);
+            this.dayOfWeek = dayOfWeek != null ? OccurrenceExpander.parseDayOfWeek(dayOfWeek) : -1;
+            String words = emptyToNull(keywords);
+            this.keywords = words != null ? words.trim().toLowerCase().split("\\s+") : new String[0];
+        }
+
+        boolean matches(ContentValues opportunity) {
+            if (activityId != null && !activityId.equals(opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_ACTIVITY_ID))) {
+                return false;
+            }
+            if (subActivityId != null && !subActivityId.equals(opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_SUB_ACTIVITY_ID))) {
+                return false;
+            }
+            if (venueId != null && !venueId.equals(opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_VENUE_ID))) {
+                return false;
+            }
+            if (dayOfWeek >= 0 && dayOfWeek != OccurrenceExpander.parseDayOfWeek(opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_DAY_OF_WEEK))) {
+                return false;
+            }
+            if (keywords.length > 0) {
+                String text = (opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_NAME) + " "
+                        + opportunity.getAsString(DataProvider.KEY_OPPORTUNITY_DESCRIPTION)).toLowerCase();
+                for (String keyword : keywords) {
+                    if (!text.contains(keyword)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static String emptyToNull(String value) {
+            return value == null || value.trim().length() == 0 ? null : value;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.xoverto.matchthecity;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cursor wrapper recording the _id of every row and a hash of the columns the list shows of it,
+ * computed on the loader thread when the query runs. Comparing two snapshots gives the rows
+ * inserted, removed and changed between loads, and lets the adapter skip rebinding rows that are
+ * unchanged. Columns that aren't shown are left out, so they cost nothing to snapshot.
+ */
+public class SnapshotCursor extends CursorWrapper {
+
+    private final long[] ids;
+    private final int[] hashes;
+    private Diff diff;
+
+    /**
+     * Snapshot cursor, which must have an _id column, hashing the hashedColumns of each row.
+     */
+    public SnapshotCursor(Cursor cursor, String[] hashedColumns) {
+        super(cursor);
+        int count = cursor.getCount();
+        ids = new long[count];
+        hashes = new int[count];
+
+        int idColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ID);
+        int[] columns = new int[hashedColumns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = cursor.getColumnIndexOrThrow(hashedColumns[i]);
+        }
+        // Copied into one buffer rather than read as a String per cell
+        CharArrayBuffer buffer = new CharArrayBuffer(64);
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(idColumn);
+            int hash = 17;
+            for (int column : columns) {
+                if (cursor.isNull(column)) {
+                    hash = 31 * hash;
+                    continue;
+                }
+                cursor.copyStringToBuffer(column, buffer);
+                int value = 1;
+                for (int c = 0; c < buffer.sizeCopied; c++) {
+                    value = 31 * value + buffer.data[c];
+                }
+                hash = 31 * hash + value;
+            }
+            hashes[i] = hash;
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    public long getRowId(int position) {
+        return ids[position];
+    }
+
+    public int getRowHash(int position) {
+        return hashes[position];
+    }
+
+    /**
+     * The changes since the previous load, or null for the first load.
+     */
+    public Diff getDiff() {
+        return diff;
+    }
+
+    void diffAgainst(SnapshotCursor previous) {
+        diff = previous != null ? new Diff(previous, this) : null;
+    }
+
+    /**
+     * Positions of the rows inserted and changed (in the new result) and removed (in the old one),
+     * and whether any of the rows kept have moved.
+     */
+    public static class Diff {
+        public final int[] inserted;
+        public final int[] removed;
+        public final int[] changed;
+        public final boolean moved;
+
+        Diff(SnapshotCursor before, SnapshotCursor after) {
+            Map<Long, Integer> beforePositions = new HashMap<Long, Integer>(before.ids.length * 2);
+            for (int i = 0; i < before.ids.length; i++) {
+                beforePositions.put(before.ids[i], i);
+            }
+
+            int[] insertedPositions = new int[after.ids.length];
+            int[] changedPositions = new int[after.ids.length];
+            int insertedCount = 0;
+            int changedCount = 0;
+            int keptCount = 0;
+            boolean anyMoved = false;
+            for (int i = 0; i < after.ids.length; i++) {
+                Integer position = beforePositions.get(after.ids[i]);
+                if (position == null) {
+                    insertedPositions[insertedCount++] = i;
+                } else {
+                    keptCount++;
+                    anyMoved |= position != i;
+                    if (before.hashes[position] != after.hashes[i]) {
+                        changedPositions[changedCount++] = i;
+                    }
+                    beforePositions.remove(after.ids[i]);
+                }
+            }
+
+            int[] removedPositions = new int[before.ids.length - keptCount];
+            int removedCount = 0;
+            for (Integer position : beforePositions.values()) {
+                removedPositions[removedCount++] = position;
+            }
+            Arrays.sort(removedPositions, 0, removedCount);
+
+            inserted = Arrays.copyOf(insertedPositions, insertedCount);
+            changed = Arrays.copyOf(changedPositions, changedCount);
+            removed = Arrays.copyOf(removedPositions, removedCount);
+            moved = anyMoved;
+        }
+
+        /**
+         * Whether the new result shows exactly what the old one did, row for row.
+         */
+        public boolean isEmpty() {
+            return inserted.length == 0 && removed.length == 0 && changed.length == 0 && !moved;
+        }
+
+        @Override
+        public String toString() {
+            return inserted.length + " inserted, " + removed.length + " removed, " + changed.length + " changed";
+        }
+    }
+}
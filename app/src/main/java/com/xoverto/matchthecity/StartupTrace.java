@@ -0,0 +1,105 @@
+package com.xoverto.matchthecity;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cold start instrumentation, from the process being attached to the first list with content.
+ * <p>
+ * Sections show up in systrace on API 18 and above. Milestones are timed from process start and,
+ * for a launch from the home screen, written to {@link MetricsStore} as one "startup" record once
+ * the first content is on screen, so the time to first content can be compared between builds.
+ */
+public final class StartupTrace {
+
+    public static final String TAG = "STARTUP";
+
+    // A launch is cold if the first activity is created this soon after the process starts
+    private static final long COLD_LAUNCH_WINDOW = 5000;
+
+    private static long processStart;
+    private static final Map<String, Long> milestones = new LinkedHashMap<String, Long>();
+    private static boolean coldLaunch;
+    private static boolean reported;
+
+    private StartupTrace() {
+    }
+
+    public static synchronized void markProcessStart() {
+        processStart = SystemClock.elapsedRealtime();
+    }
+
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            traceBegin(name);
+        }
+    }
+
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            traceEnd();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void traceBegin(String name) {
+        Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void traceEnd() {
+        Trace.endSection();
+    }
+
+    /**
+     * Note the first time name is reached in this process.
+     */
+    public static synchronized void milestone(String name) {
+        if (processStart == 0 || milestones.containsKey(name)) {
+            return;
+        }
+        milestones.put(name, SystemClock.elapsedRealtime() - processStart);
+    }
+
+    /**
+     * Called from the launcher activity. Only launches that start the process are reported.
+     */
+    public static synchronized void launcherCreated() {
+        if (processStart != 0 && !milestones.containsKey("launcher_created")) {
+            coldLaunch = SystemClock.elapsedRealtime() - processStart < COLD_LAUNCH_WINDOW;
+        }
+        milestone("launcher_created");
+    }
+
+    /**
+     * Called when a list first has rows to show. Reports the cold start once per process.
+     */
+    public static synchronized void firstContent(String screen) {
+        if (reported || !coldLaunch) {
+            return;
+        }
+        reported = true;
+        milestone("first_content");
+        Log.d(TAG, "First content in " + screen + ": " + milestones);
+
+        try {
+            JSONObject fields = new JSONObject();
+            fields.put("screen", screen);
+            for (Map.Entry<String, Long> milestone : milestones.entrySet()) {
+                fields.put(milestone.getKey() + "_ms", milestone.getValue());
+            }
+            MetricsStore.record("startup", fields);
+        } catch (JSONException e) {
+            // Not recorded
+        }
+    }
+}
@@ -2,10 +2,12 @@ package com.xoverto.matchthecity;
 
 import android.app.Activity;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.app.Fragment;
 import android.view.LayoutInflater;
@@ -15,9 +17,7 @@ import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListAdapter;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
-import android.widget.Toast;
 
 
 import com.xoverto.matchthecity.dummy.DummyContent;
@@ -36,7 +36,10 @@ public class SubActivityFragment extends Fragment implements AbsListView.OnItemC
     public static final String TAG = "SUB_ACTIVITIES";
 
     private OnFragmentInteractionListener mListener;
-    private SimpleCursorAdapter mCursorAdapter;
+    private DiffCursorAdapter mCursorAdapter;
+    private boolean mRefreshRequested;
+    private SyncProgress.EmptyViewUpdater mProgressUpdater;
+    private final SubActivityRow mRow = new SubActivityRow();
 
     /**
      * The fragment's ListView/GridView.
@@ -75,7 +78,7 @@ public class SubActivityFragment extends Fragment implements AbsListView.OnItemC
         View view = inflater.inflate(R.layout.fragment_venue, container, false);
 
         // Set the adapter
-        mCursorAdapter = new SimpleCursorAdapter(getActivity(),
+        mCursorAdapter = new DiffCursorAdapter(getActivity(),
                 android.R.layout.simple_list_item_1,
                 null,
                 new String[] { DataProvider.KEY_SUB_ACTIVITY_TITLE},
@@ -83,6 +86,10 @@ public class SubActivityFragment extends Fragment implements AbsListView.OnItemC
 
 
         mListView = (AbsListView) view.findViewById(android.R.id.list);
+        // Show how far the sync has got while there is nothing to list
+        TextView emptyView = (TextView) view.findViewById(android.R.id.empty);
+        mListView.setEmptyView(emptyView);
+        mProgressUpdater = new SyncProgress.EmptyViewUpdater(FeedDescriptor.SUB_ACTIVITIES.name, emptyView);
         ((AdapterView<ListAdapter>) mListView).setAdapter(mCursorAdapter);
 
         // Set OnItemClickListener so we can be notified on item clicks
@@ -90,8 +97,6 @@ public class SubActivityFragment extends Fragment implements AbsListView.OnItemC
 
         getLoaderManager().initLoader(0, null, this);
 
-        refreshVenues();
-
         return view;
     }
 
@@ -117,16 +122,30 @@ public class SubActivityFragment extends Fragment implements AbsListView.OnItemC
         mListener = null;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        mProgressUpdater.register(getActivity());
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mProgressUpdater.unregister(getActivity());
+    }
+
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 
-        Cursor cursor = (Cursor)mCursorAdapter.getItem(position);
-        String value = cursor.getString(cursor
-                .getColumnIndex(DataProvider.KEY_SUB_ACTIVITY_TITLE));
+        String value = mRow.wrap((Cursor) mCursorAdapter.getItem(position)).getTitle();
 
 
-        Toast.makeText(parent.getContext(), value, Toast.LENGTH_SHORT).show();
+        // Show just the opportunities for this item
+        Intent intent = new Intent(getActivity(), OpportunitiesActivity.class);
+        intent.putExtra(OpportunitiesActivity.EXTRA_OPPORTUNITIES_URI,
+                Uri.withAppendedPath(ContentUris.withAppendedId(DataProvider.CONTENT_URI_SUB_ACTIVITIES, id), DataProvider.PATH_OPPORTUNITIES));
+        startActivity(intent);
         if (null != mListener) {
             // Notify the active callbacks interface (the activity, if the
             // fragment is attached to one) that an item has been selected.
@@ -164,13 +183,9 @@ public class SubActivityFragment extends Fragment implements AbsListView.OnItemC
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                DataProvider.KEY_ID,
-                DataProvider.KEY_SUB_ACTIVITY_TITLE
-        };
-        CursorLoader loader = new CursorLoader(getActivity(),
+        CursorLoader loader = new DiffCursorLoader(getActivity(),
                 DataProvider.CONTENT_URI_SUB_ACTIVITIES,
-                projection, null, null, null);
+                SubActivityRow.PROJECTION, null, null, null, mCursorAdapter.getBoundColumns());
 
         return loader;
     }
@@ -179,6 +194,14 @@ public class SubActivityFragment extends Fragment implements AbsListView.OnItemC
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         mCursorAdapter.swapCursor(cursor);
 
+        // Sync once there is something on screen, rather than on the launch path
+        if (cursor != null && cursor.getCount() > 0) {
+            StartupTrace.firstContent(getClass().getSimpleName());
+        }
+        if (!mRefreshRequested) {
+            mRefreshRequested = true;
+            DataUpdateService.requestRefreshIfStale(getActivity());
+        }
     }
 
     @Override
@@ -0,0 +1,55 @@
+package com.xoverto.matchthecity;
+
+import android.database.Cursor;
+
+/**
+ * Typed view of a sub activity row from {@link DataProvider}, for a cursor queried with {@link #PROJECTION}.
+ * <p>
+ * The column indices are resolved once per cursor, so one instance can be reused for every row
+ * while binding or iterating without any per row lookups or allocation.
+ */
+public final class SubActivityRow {
+
+    public static final String[] PROJECTION = {
+            DataProvider.KEY_ID,
+            DataProvider.KEY_SUB_ACTIVITY_ID,
+            DataProvider.KEY_SUB_ACTIVITY_TITLE,
+            DataProvider.KEY_SUB_ACTIVITY_ACTIVITY_ID
+    };
+
+    private Cursor cursor;
+    private int idColumn;
+    private int subActivityIdColumn;
+    private int titleColumn;
+    private int activityIdColumn;
+
+    /**
+     * Read the current row of cursor, resolving the column indices if it is a new cursor.
+     */
+    public SubActivityRow wrap(Cursor cursor) {
+        if (cursor != this.cursor) {
+            this.cursor = cursor;
+            idColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ID);
+            subActivityIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_SUB_ACTIVITY_ID);
+            titleColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_SUB_ACTIVITY_TITLE);
+            activityIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_SUB_ACTIVITY_ACTIVITY_ID);
+        }
+        return this;
+    }
+
+    public long getId() {
+        return cursor.getLong(idColumn);
+    }
+
+    public String getSubActivityId() {
+        return cursor.getString(subActivityIdColumn);
+    }
+
+    public String getTitle() {
+        return cursor.getString(titleColumn);
+    }
+
+    public String getActivityId() {
+        return cursor.getString(activityIdColumn);
+    }
+}
@@ -0,0 +1,102 @@
+package com.xoverto.matchthecity;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+/**
+ * Decides which feeds {@link DataUpdateService} may sync under the current network and power
+ * conditions.
+ * <p>
+ * The small feeds (activities and sub activities) sync whenever there is a connection. The heavy
+ * feeds (venues and opportunities) only sync on an unmetered network or while charging, and not
+ * on a low battery unless charging. A deferred heavy sync is remembered so {@link DataAlarmReceiver}
+ * can start it as soon as conditions improve.
+ * <p>
+ * Database maintenance runs while charging, or while the screen is off on a battery that isn't low.
+ */
+public class SyncPolicy {
+
+    private static final String PREF_HEAVY_SYNC_PENDING = "heavy_sync_pending";
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private final boolean connected;
+    private final boolean metered;
+    private final boolean charging;
+    private final boolean lowBattery;
+    private final boolean screenOn;
+
+    private SyncPolicy(boolean connected, boolean metered, boolean charging, boolean lowBattery, boolean screenOn) {
+        this.connected = connected;
+        this.metered = metered;
+        this.charging = charging;
+        this.lowBattery = lowBattery;
+        this.screenOn = screenOn;
+    }
+
+    public static SyncPolicy forCurrentConditions(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        boolean connected = activeNetwork != null && activeNetwork.isConnected();
+        boolean metered = !connected || ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+
+        // ACTION_BATTERY_CHANGED is sticky so this returns the current state without a receiver
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean charging = false;
+        boolean lowBattery = false;
+        if (battery != null) {
+            int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            charging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            lowBattery = level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        }
+
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        boolean screenOn = pm.isScreenOn();
+
+        return new SyncPolicy(connected, metered, charging, lowBattery, screenOn);
+    }
+
+    public boolean canSyncLightFeeds() {
+        return connected;
+    }
+
+    public boolean canSyncHeavyFeeds() {
+        if (!connected) {
+            return false;
+        }
+        if (charging) {
+            return true;
+        }
+        return !metered && !lowBattery;
+    }
+
+    public boolean canRunMaintenance() {
+        return charging || (!screenOn && !lowBattery);
+    }
+
+    public static boolean isHeavySyncPending(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getBoolean(PREF_HEAVY_SYNC_PENDING, false);
+    }
+
+    public static void setHeavySyncPending(Context context, boolean pending) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit().putBoolean(PREF_HEAVY_SYNC_PENDING, pending).commit();
+    }
+
+    @Override
+    public String toString() {
+        return "SyncPolicy{connected=" + connected + ", metered=" + metered
+                + ", charging=" + charging + ", lowBattery=" + lowBattery + ", screenOn=" + screenOn + "}";
+    }
+}
@@ -0,0 +1,81 @@
+package com.xoverto.matchthecity;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
+import android.widget.TextView;
+
+/**
+ * Local broadcasts of how far the sync of each feed has got, sent by {@link FeedIngester} after
+ * each chunk of rows it commits.
+ */
+public class SyncProgress {
+
+    public static final String ACTION_SYNC_PROGRESS = "com.xoverto.matchthecity.ACTION_SYNC_PROGRESS";
+
+    public static final String EXTRA_FEED = "feed";
+    public static final String EXTRA_REGION = "region";
+    public static final String EXTRA_ROWS_DONE = "rows_done";
+    // -1 if the size of the feed isn't known
+    public static final String EXTRA_ROWS_ESTIMATED = "rows_estimated";
+    public static final String EXTRA_BYTES = "bytes";
+    public static final String EXTRA_FINISHED = "finished";
+
+    private SyncProgress() {
+    }
+
+    public static void publish(Context context, String feed, int region, int rowsDone, int rowsEstimated, long bytes, boolean finished) {
+        Intent intent = new Intent(ACTION_SYNC_PROGRESS);
+        intent.putExtra(EXTRA_FEED, feed);
+        intent.putExtra(EXTRA_REGION, region);
+        intent.putExtra(EXTRA_ROWS_DONE, rowsDone);
+        intent.putExtra(EXTRA_ROWS_ESTIMATED, rowsEstimated);
+        intent.putExtra(EXTRA_BYTES, bytes);
+        intent.putExtra(EXTRA_FINISHED, finished);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
+    /**
+     * Shows the progress of one feed of the active region in a list's empty view while the list
+     * has nothing else to show. Register in onResume and unregister in onPause.
+     */
+    public static class EmptyViewUpdater extends BroadcastReceiver {
+        private final String feed;
+        private final TextView emptyView;
+
+        public EmptyViewUpdater(String feed, TextView emptyView) {
+            this.feed = feed;
+            this.emptyView = emptyView;
+        }
+
+        public void register(Context context) {
+            LocalBroadcastManager.getInstance(context).registerReceiver(this, new IntentFilter(ACTION_SYNC_PROGRESS));
+        }
+
+        public void unregister(Context context) {
+            LocalBroadcastManager.getInstance(context).unregisterReceiver(this);
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!feed.equals(intent.getStringExtra(EXTRA_FEED))
+                    || intent.getIntExtra(EXTRA_REGION, -1) != Regions.getActive(context)) {
+                return;
+            }
+            if (intent.getBooleanExtra(EXTRA_FINISHED, false)) {
+                emptyView.setText(null);
+                return;
+            }
+
+            int done = intent.getIntExtra(EXTRA_ROWS_DONE, 0);
+            int estimated = intent.getIntExtra(EXTRA_ROWS_ESTIMATED, -1);
+            if (estimated > 0) {
+                emptyView.setText(context.getString(R.string.sync_progress_estimated, done, Math.max(done, estimated)));
+            } else {
+                emptyView.setText(context.getString(R.string.sync_progress, done));
+            }
+        }
+    }
+}
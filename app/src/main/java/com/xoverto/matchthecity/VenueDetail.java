@@ -0,0 +1,69 @@
+package com.xoverto.matchthecity;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+
+/**
+ * Everything stored about one venue, read from the venues/# URI of {@link DataProvider}.
+ * <p>
+ * The venues feed is stored in full, so a venue screen can show the address and contact details
+ * straight from the local store without going to the network.
+ */
+public final class VenueDetail {
+
+    public static final String[] PROJECTION = {
+            DataProvider.KEY_ID,
+            DataProvider.KEY_VENUE_ID,
+            DataProvider.KEY_NAME,
+            DataProvider.KEY_LOCATION_LAT,
+            DataProvider.KEY_LOCATION_LNG,
+            DataProvider.KEY_ADDRESS,
+            DataProvider.KEY_POSTCODE,
+            DataProvider.KEY_WEB,
+            DataProvider.KEY_EMAIL,
+            DataProvider.KEY_TELEPHONE,
+            DataProvider.KEY_OPPORTUNITY_COUNT
+    };
+
+    public final long id;
+    public final String venueId;
+    public final String name;
+    public final double latitude;
+    public final double longitude;
+    public final String address;
+    public final String postcode;
+    public final String web;
+    public final String email;
+    public final String telephone;
+    public final int opportunityCount;
+
+    private VenueDetail(Cursor cursor) {
+        id = cursor.getLong(0);
+        venueId = cursor.getString(1);
+        name = cursor.getString(2);
+        latitude = cursor.getDouble(3);
+        longitude = cursor.getDouble(4);
+        address = cursor.getString(5);
+        postcode = cursor.getString(6);
+        web = cursor.getString(7);
+        email = cursor.getString(8);
+        telephone = cursor.getString(9);
+        opportunityCount = cursor.getInt(10);
+    }
+
+    /**
+     * Read the venue with the given _id, or return null if there is none. Call off the main thread.
+     */
+    public static VenueDetail load(ContentResolver cr, long id) {
+        Cursor cursor = cr.query(ContentUris.withAppendedId(DataProvider.CONTENT_URI_VENUES, id), PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? new VenueDetail(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
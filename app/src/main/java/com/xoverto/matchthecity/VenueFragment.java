@@ -2,10 +2,12 @@ package com.xoverto.matchthecity;
 
 import android.app.Activity;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.app.Fragment;
 import android.view.LayoutInflater;
@@ -14,7 +16,6 @@ import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListAdapter;
-import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -30,12 +31,15 @@ import com.google.android.gms.maps.model.LatLng;
  * Activities containing this fragment MUST implement the {Callbacks}
  * interface.
  */
-public class VenueFragment extends Fragment implements AbsListView.OnItemClickListener, LoaderManager.LoaderCallbacks<Cursor> {
+public class VenueFragment extends Fragment implements AbsListView.OnItemClickListener, AbsListView.OnItemLongClickListener, LoaderManager.LoaderCallbacks<Cursor> {
 
     public static final String TAG = "VENUES";
 
     private OnFragmentInteractionListener mListener;
-    private SimpleCursorAdapter mCursorAdapter;
+    private DiffCursorAdapter mCursorAdapter;
+    private boolean mRefreshRequested;
+    private SyncProgress.EmptyViewUpdater mProgressUpdater;
+    private final VenueRow mRow = new VenueRow();
 
     /**
      * The fragment's ListView/GridView.
@@ -74,7 +78,7 @@ public class VenueFragment extends Fragment implements AbsListView.OnItemClickLi
         View view = inflater.inflate(R.layout.fragment_venue, container, false);
 
         // Set the adapter
-        mCursorAdapter = new SimpleCursorAdapter(getActivity(),
+        mCursorAdapter = new DiffCursorAdapter(getActivity(),
                 android.R.layout.simple_list_item_1,
                 null,
                 new String[] { DataProvider.KEY_NAME},
@@ -82,15 +86,18 @@ public class VenueFragment extends Fragment implements AbsListView.OnItemClickLi
 
 
         mListView = (AbsListView) view.findViewById(android.R.id.list);
+        // Show how far the sync has got while there is nothing to list
+        TextView emptyView = (TextView) view.findViewById(android.R.id.empty);
+        mListView.setEmptyView(emptyView);
+        mProgressUpdater = new SyncProgress.EmptyViewUpdater(FeedDescriptor.VENUES.name, emptyView);
         ((AdapterView<ListAdapter>) mListView).setAdapter(mCursorAdapter);
 
         // Set OnItemClickListener so we can be notified on item clicks
         mListView.setOnItemClickListener(this);
+        mListView.setOnItemLongClickListener(this);
 
         getLoaderManager().initLoader(0, null, this);
 
-        refreshVenues();
-
         return view;
     }
 
@@ -116,17 +123,26 @@ public class VenueFragment extends Fragment implements AbsListView.OnItemClickLi
         mListener = null;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        mProgressUpdater.register(getActivity());
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mProgressUpdater.unregister(getActivity());
+    }
+
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 
-        Cursor cursor = (Cursor)mCursorAdapter.getItem(position);
-        String value = cursor.getString(cursor
-                .getColumnIndex(DataProvider.KEY_NAME));
-        double lat = cursor.getDouble(cursor.getColumnIndex(DataProvider.KEY_LOCATION_LAT));
-        double lng = cursor.getDouble(cursor.getColumnIndex(DataProvider.KEY_LOCATION_LNG));
+        VenueRow row = mRow.wrap((Cursor) mCursorAdapter.getItem(position));
+        String value = row.getName();
 
-        LatLng venueLatLng = new LatLng(lat, lng);
+        LatLng venueLatLng = new LatLng(row.getLatitude(), row.getLongitude());
 
 
         Toast.makeText(parent.getContext(), value, Toast.LENGTH_SHORT).show();
@@ -137,6 +153,16 @@ public class VenueFragment extends Fragment implements AbsListView.OnItemClickLi
         }
     }
 
+    @Override
+    public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+        // Show what's on at this venue
+        Intent intent = new Intent(getActivity(), OpportunitiesActivity.class);
+        intent.putExtra(OpportunitiesActivity.EXTRA_OPPORTUNITIES_URI,
+                Uri.withAppendedPath(ContentUris.withAppendedId(DataProvider.CONTENT_URI_VENUES, id), DataProvider.PATH_OPPORTUNITIES));
+        startActivity(intent);
+        return true;
+    }
+
     /**
      * The default content for this Fragment has a TextView that is shown when
      * the list is empty. If you would like to change the text, call this method
@@ -167,17 +193,9 @@ public class VenueFragment extends Fragment implements AbsListView.OnItemClickLi
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                DataProvider.KEY_ID,
-                DataProvider.KEY_NAME,
-                DataProvider.KEY_VENUE_ID,
-                DataProvider.KEY_LOCATION_LAT,
-                DataProvider.KEY_LOCATION_LNG,
-                DataProvider.KEY_UPDATED
-        };
-        CursorLoader loader = new CursorLoader(getActivity(),
+        CursorLoader loader = new DiffCursorLoader(getActivity(),
                 DataProvider.CONTENT_URI_VENUES,
-                projection, null, null, null);
+                VenueRow.PROJECTION, null, null, null, mCursorAdapter.getBoundColumns());
 
         return loader;
     }
@@ -186,6 +204,14 @@ public class VenueFragment extends Fragment implements AbsListView.OnItemClickLi
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         mCursorAdapter.swapCursor(cursor);
 
+        // Sync once there is something on screen, rather than on the launch path
+        if (cursor != null && cursor.getCount() > 0) {
+            StartupTrace.firstContent(getClass().getSimpleName());
+        }
+        if (!mRefreshRequested) {
+            mRefreshRequested = true;
+            DataUpdateService.requestRefreshIfStale(getActivity());
+        }
     }
 
     @Override
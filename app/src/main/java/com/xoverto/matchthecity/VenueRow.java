@@ -0,0 +1,69 @@
+package com.xoverto.matchthecity;
+
+import android.database.Cursor;
+
+/**
+ * Typed view of a venue row from {@link DataProvider}, for a cursor queried with {@link #PROJECTION}.
+ * <p>
+ * The column indices are resolved once per cursor, so one instance can be reused for every row
+ * while binding or iterating without any per row lookups or allocation.
+ */
+public final class VenueRow {
+
+    public static final String[] PROJECTION = {
+            DataProvider.KEY_ID,
+            DataProvider.KEY_VENUE_ID,
+            DataProvider.KEY_NAME,
+            DataProvider.KEY_LOCATION_LAT,
+            DataProvider.KEY_LOCATION_LNG,
+            DataProvider.KEY_UPDATED
+    };
+
+    private Cursor cursor;
+    private int idColumn;
+    private int venueIdColumn;
+    private int nameColumn;
+    private int latitudeColumn;
+    private int longitudeColumn;
+    private int updatedColumn;
+
+    /**
+     * Read the current row of cursor, resolving the column indices if it is a new cursor.
+     */
+    public VenueRow wrap(Cursor cursor) {
+        if (cursor != this.cursor) {
+            this.cursor = cursor;
+            idColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_ID);
+            venueIdColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_VENUE_ID);
+            nameColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_NAME);
+            latitudeColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_LOCATION_LAT);
+            longitudeColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_LOCATION_LNG);
+            updatedColumn = cursor.getColumnIndexOrThrow(DataProvider.KEY_UPDATED);
+        }
+        return this;
+    }
+
+    public long getId() {
+        return cursor.getLong(idColumn);
+    }
+
+    public String getVenueId() {
+        return cursor.getString(venueIdColumn);
+    }
+
+    public String getName() {
+        return cursor.getString(nameColumn);
+    }
+
+    public double getLatitude() {
+        return cursor.getDouble(latitudeColumn);
+    }
+
+    public double getLongitude() {
+        return cursor.getDouble(longitudeColumn);
+    }
+
+    public long getUpdated() {
+        return cursor.getLong(updatedColumn);
+    }
+}
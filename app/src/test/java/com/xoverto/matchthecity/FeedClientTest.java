@@ -0,0 +1,168 @@
+package com.xoverto.matchthecity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads through {@link FeedClient} from a {@link StubFeedServer}: resuming a dropped
+ * download, and starting again when the server can't or won't resume it.
+ */
+public class FeedClientTest {
+
+    private static final String PATH = "/regions/4/venues.json";
+    private static final int CUT_OFF = 40000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FeedClient client = new FeedClient(5000, 5000);
+    private StubFeedServer server;
+    private File target;
+
+    @Before
+    public void setUp() {
+        target = new File(folder.getRoot(), "venues_4.json");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void resumesDroppedDownloadWhereItStopped() throws IOException {
+        final byte[] body = feed(1000, "v1");
+        server = new StubFeedServer(new StubFeedServer.Handler() {
+            @Override
+            public StubFeedServer.Response respond(StubFeedServer.Request request) {
+                return StubFeedServer.Response.ok(body).etag("\"v1\"");
+            }
+        });
+
+        dropAfter(CUT_OFF);
+        assertTrue(client.download(server.url(PATH), target));
+
+        List<StubFeedServer.Request> requests = server.requests();
+        assertEquals(2, requests.size());
+        assertEquals("bytes=" + CUT_OFF + "-", requests.get(1).header("Range"));
+        assertEquals("\"v1\"", requests.get(1).header("If-Range"));
+        assertEquals(206, requests.get(1).getStatus());
+        assertArrayEquals(body, read(target));
+        assertEquals("\"v1\"", client.downloadVersion(target));
+    }
+
+    @Test
+    public void restartsWhenContentRangeDoesNotMatch() throws IOException {
+        final byte[] body = feed(1000, "v1");
+        server = new StubFeedServer(new StubFeedServer.Handler() {
+            private int calls;
+
+            @Override
+            public StubFeedServer.Response respond(StubFeedServer.Request request) {
+                if (++calls == 2) {
+                    // Resumes from the wrong place
+                    byte[] rest = new byte[body.length - CUT_OFF / 2];
+                    System.arraycopy(body, CUT_OFF / 2, rest, 0, rest.length);
+                    return new StubFeedServer.Response(206, rest)
+                            .etag("\"v1\"")
+                            .header("Content-Range", "bytes " + CUT_OFF / 2 + "-" + (body.length - 1) + "/" + body.length);
+                }
+                return StubFeedServer.Response.ok(body).etag("\"v1\"");
+            }
+        });
+
+        dropAfter(CUT_OFF);
+        assertFalse(client.download(server.url(PATH), target));
+        assertFalse(target.exists());
+
+        // The partial body was thrown away, so the next attempt asks for all of it
+        assertTrue(client.download(server.url(PATH), target));
+        List<StubFeedServer.Request> requests = server.requests();
+        assertEquals(3, requests.size());
+        assertNull(requests.get(2).header("Range"));
+        assertArrayEquals(body, read(target));
+    }
+
+    @Test
+    public void changedFeedReplacesPartialDownload() throws IOException {
+        final byte[] before = feed(1000, "v1");
+        final byte[] after = feed(1200, "v2");
+        server = new StubFeedServer(new StubFeedServer.Handler() {
+            private int calls;
+
+            @Override
+            public StubFeedServer.Response respond(StubFeedServer.Request request) {
+                return ++calls == 1
+                        ? StubFeedServer.Response.ok(before).etag("\"v1\"")
+                        : StubFeedServer.Response.ok(after).etag("\"v2\"");
+            }
+        });
+
+        dropAfter(CUT_OFF);
+        assertTrue(client.download(server.url(PATH), target));
+
+        StubFeedServer.Request resumed = server.requests().get(1);
+        assertEquals("\"v1\"", resumed.header("If-Range"));
+        assertEquals(200, resumed.getStatus());
+        assertArrayEquals(after, read(target));
+        assertEquals("\"v2\"", client.downloadVersion(target));
+    }
+
+    // Start a download the server drops after bytes of the body
+    private void dropAfter(int bytes) {
+        server.cutOffNextResponse(bytes);
+        try {
+            client.download(server.url(PATH), target);
+            fail("Download of a dropped response completed");
+        } catch (IOException expected) {
+            // Keeps the partial body
+        }
+        assertFalse(target.exists());
+    }
+
+    private byte[] read(File file) throws IOException {
+        InputStream in = client.openDownload(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // A venues feed of rows, distinct per version
+    private static byte[] feed(int rows, String version) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(i).append("\",\"name\":\"Venue ").append(i).append(' ').append(version)
+                    .append("\",\"address\":\"").append(i).append(" Union Street\",\"postcode\":\"AB10 1AA\"}");
+        }
+        return json.append(']').toString().getBytes("UTF-8");
+    }
+}
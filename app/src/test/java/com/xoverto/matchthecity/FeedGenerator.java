@@ -0,0 +1,260 @@
+package com.xoverto.matchthecity;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the four feeds of any region at any size, and serves them from a
+ * {@link StubFeedServer} for scale and soak tests.
+ * <p>
+ * Rows look like the live feeds': venues around the city centre with addresses and contact
+ * details, activities in a handful of categories, and opportunities at a venue on a day of the
+ * week. The same seed, sizes and revision always give the same bytes. Each revision renames one
+ * row in {@link #CHURN} of every feed and withdraws one opportunity in {@link #WITHDRAWN}, which
+ * comes back in the next revision, so successive revisions differ the way a day's edits would.
+ * <p>
+ * As a handler, the generator serves the feeds at {@link #setRevision(int) the current revision}
+ * with the revision as ETag and change cursor. A request with
+ * {@link FeedClient#PARAM_UPDATED_SINCE} gets the changes since that revision, with tombstones
+ * for the rows withdrawn.
+ */
+public class FeedGenerator implements StubFeedServer.Handler {
+
+    // Sizes at scale 1
+    public static final int VENUES = 150;
+    public static final int ACTIVITIES = 60;
+    public static final int SUB_ACTIVITIES = 250;
+    public static final int OPPORTUNITIES = 3000;
+
+    public static final int CHURN = 50;
+    public static final int WITHDRAWN = 100;
+
+    private static final Pattern FEED_PATH = Pattern.compile("/regions/(\\d+)/(\\w+)\\.json");
+
+    private static final String[] STREETS = { "Union Street", "King Street", "George Street", "Holburn Street",
+            "Great Western Road", "Rosemount Place", "Great Northern Road", "King's Gate", "Anderson Drive", "Beach Boulevard" };
+    private static final String[] PLACES = { "Leisure Centre", "Sports Centre", "Community Centre", "Pool", "Academy",
+            "Church Hall", "Park", "Studio", "Sports Village", "Library" };
+    private static final String[] CATEGORIES = { "Sport", "Fitness", "Dance", "Water", "Outdoor", "Arts", "Wellbeing" };
+    private static final String[] ACTIVITY_NAMES = { "Swimming", "Badminton", "Yoga", "Football", "Pilates", "Tennis",
+            "Climbing", "Zumba", "Netball", "Athletics", "Judo", "Walking" };
+    private static final String[] LEVELS = { "Beginners", "Improvers", "Intermediate", "Advanced", "Family", "Over 50s", "Junior" };
+    private static final String[] ROOMS = { "Main Hall", "Studio 1", "Studio 2", "Pool", "Sports Hall", "Outdoor Pitch", "Meeting Room" };
+    private static final String[] DAYS = { "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday" };
+
+    private final long seed;
+    private final int venues;
+    private final int activities;
+    private final int subActivities;
+    private final int opportunities;
+    private volatile int revision;
+
+    public FeedGenerator(long seed, int venues, int activities, int subActivities, int opportunities) {
+        this.seed = seed;
+        this.venues = venues;
+        this.activities = activities;
+        this.subActivities = subActivities;
+        this.opportunities = opportunities;
+    }
+
+    /**
+     * A generator with scale times the rows of each feed at scale 1.
+     */
+    public static FeedGenerator scaled(long seed, int scale) {
+        return new FeedGenerator(seed, VENUES * scale, ACTIVITIES * scale, SUB_ACTIVITIES * scale, OPPORTUNITIES * scale);
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    public void setRevision(int revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * The number of rows of feed in each region at revision.
+     */
+    public int rows(FeedDescriptor feed, int revision) {
+        int rows = size(feed);
+        int withdrawn = 0;
+        for (int i = 0; i < rows; i++) {
+            if (isWithdrawn(feed, i, revision)) {
+                withdrawn++;
+            }
+        }
+        return rows - withdrawn;
+    }
+
+    /**
+     * The whole of feed for region at revision, as a JSON array.
+     */
+    public byte[] feed(FeedDescriptor feed, int region, int revision) {
+        StringBuilder json = new StringBuilder(size(feed) * 160).append('[');
+        for (int i = 0; i < size(feed); i++) {
+            String row = row(feed, region, i, revision);
+            if (row != null) {
+                append(json, row);
+            }
+        }
+        return bytes(json.append(']'));
+    }
+
+    /**
+     * The rows of feed for region changed between revisions from and to: the rows added or
+     * changed, and a tombstone for each row withdrawn.
+     */
+    public byte[] changes(FeedDescriptor feed, int region, int from, int to) {
+        StringBuilder json = new StringBuilder().append('[');
+        for (int i = 0; i < size(feed); i++) {
+            String before = row(feed, region, i, from);
+            String after = row(feed, region, i, to);
+            if (after == null && before != null) {
+                append(json, "{\"id\":\"" + id(region, i) + "\",\"" + FeedDescriptor.TOMBSTONE_FIELD + "\":true}");
+            } else if (after != null && !after.equals(before)) {
+                append(json, after);
+            }
+        }
+        return bytes(json.append(']'));
+    }
+
+    @Override
+    public StubFeedServer.Response respond(StubFeedServer.Request request) {
+        Matcher path = FEED_PATH.matcher(request.path);
+        FeedDescriptor feed = path.matches() ? descriptor(path.group(2)) : null;
+        if (feed == null) {
+            return new StubFeedServer.Response(404, null);
+        }
+        int region = Integer.parseInt(path.group(1));
+        int current = revision;
+        String since = sinceRevision(request.query);
+
+        StubFeedServer.Response response;
+        if (since != null && since.matches("\\d+") && Integer.parseInt(since) <= current) {
+            response = StubFeedServer.Response.ok(changes(feed, region, Integer.parseInt(since), current))
+                    .header("X-Feed-Delta", "true");
+        } else {
+            response = StubFeedServer.Response.ok(feed(feed, region, current))
+                    .etag("\"" + feed.name + "-" + region + "-" + current + "\"");
+        }
+        return response.header("X-Feed-Cursor", String.valueOf(current));
+    }
+
+    private static String sinceRevision(String query) {
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith(FeedClient.PARAM_UPDATED_SINCE + "=")) {
+                return param.substring(FeedClient.PARAM_UPDATED_SINCE.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static FeedDescriptor descriptor(String name) {
+        for (FeedDescriptor feed : FeedDescriptor.ALL) {
+            if (feed.name.equals(name)) {
+                return feed;
+            }
+        }
+        return null;
+    }
+
+    private int size(FeedDescriptor feed) {
+        if (feed == FeedDescriptor.VENUES) {
+            return venues;
+        } else if (feed == FeedDescriptor.ACTIVITIES) {
+            return activities;
+        } else if (feed == FeedDescriptor.SUB_ACTIVITIES) {
+            return subActivities;
+        }
+        return opportunities;
+    }
+
+    private static boolean isWithdrawn(FeedDescriptor feed, int index, int revision) {
+        return feed == FeedDescriptor.OPPORTUNITIES && revision > 0 && index % WITHDRAWN == revision % WITHDRAWN;
+    }
+
+    // The last revision up to revision that renamed the row, or 0 if none has
+    private static int renamedIn(int index, int revision) {
+        int since = ((revision - index) % CHURN + CHURN) % CHURN;
+        return Math.max(0, revision - since);
+    }
+
+    // Ids are unique across regions, as the live feeds' are
+    private static String id(int region, int index) {
+        return String.valueOf(region * 1000000 + index);
+    }
+
+    /**
+     * The JSON object for row index of feed at revision, or null if it's withdrawn then.
+     */
+    private String row(FeedDescriptor feed, int region, int index, int revision) {
+        if (isWithdrawn(feed, index, revision)) {
+            return null;
+        }
+        Random random = new Random(seed * 31 + feed.name.hashCode() * 1000003L + region * 7919L + index);
+        int renamed = renamedIn(index, revision);
+        String suffix = renamed > 0 ? " (" + renamed + ")" : "";
+
+        StringBuilder json = new StringBuilder("{\"id\":\"").append(id(region, index)).append('"');
+        if (feed == FeedDescriptor.VENUES) {
+            String street = pick(random, STREETS);
+            field(json, "name", pick(random, STREETS).split(" ")[0] + " " + pick(random, PLACES) + suffix);
+            json.append(",\"latitude\":").append(String.format(Locale.US, "%.6f", 57.1497 + (random.nextDouble() - 0.5) * 0.1));
+            json.append(",\"longitude\":").append(String.format(Locale.US, "%.6f", -2.0943 + (random.nextDouble() - 0.5) * 0.2));
+            field(json, "address", (1 + random.nextInt(400)) + " " + street + ", Aberdeen");
+            field(json, "postcode", "AB" + (10 + random.nextInt(16)) + " " + random.nextInt(10) + (char) ('A' + random.nextInt(26)) + (char) ('A' + random.nextInt(26)));
+            field(json, "web", "http://www.example.org/venues/" + index);
+            field(json, "email", "venue" + index + "@example.org");
+            field(json, "telephone", "01224 " + (100000 + random.nextInt(900000)));
+        } else if (feed == FeedDescriptor.ACTIVITIES) {
+            field(json, "title", pick(random, ACTIVITY_NAMES) + " " + index + suffix);
+            field(json, "category", pick(random, CATEGORIES));
+        } else if (feed == FeedDescriptor.SUB_ACTIVITIES) {
+            field(json, "title", pick(random, LEVELS) + " " + pick(random, ACTIVITY_NAMES) + suffix);
+            field(json, "activity_id", id(region, random.nextInt(activities)));
+        } else {
+            int activity = random.nextInt(activities);
+            int hour = 6 + random.nextInt(15);
+            field(json, "name", pick(random, LEVELS) + " " + pick(random, ACTIVITY_NAMES) + suffix);
+            field(json, "description", "Sessions for all, equipment provided. Booking " + (random.nextBoolean() ? "required." : "not required."));
+            field(json, "activity_id", id(region, activity));
+            field(json, "sub_activity_id", id(region, random.nextInt(subActivities)));
+            field(json, "venue_id", id(region, random.nextInt(venues)));
+            field(json, "room", pick(random, ROOMS));
+            field(json, "start_time", String.format(Locale.US, "%02d:%02d", hour, random.nextInt(4) * 15));
+            field(json, "end_time", String.format(Locale.US, "%02d:%02d", hour + 1, random.nextInt(4) * 15));
+            field(json, "day_of_week", pick(random, DAYS));
+        }
+        return json.append('}').toString();
+    }
+
+    // The generated values need no escaping
+    private static void field(StringBuilder json, String name, String value) {
+        json.append(",\"").append(name).append("\":\"").append(value).append('"');
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static void append(StringBuilder json, String row) {
+        if (json.length() > 1) {
+            json.append(',');
+        }
+        json.append(row);
+    }
+
+    private static byte[] bytes(StringBuilder json) {
+        try {
+            return json.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.xoverto.matchthecity;
+
+import android.content.ContentResolver;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs the venues feed from a {@link StubFeedServer} into a {@link DataProvider} the way
+ * {@link DataUpdateService} does: the whole feed first, then the changes since its cursor.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 19)
+public class FeedIngesterTest {
+
+    private static final int REGION = 4;
+    private static final int OTHER_REGION = 5;
+
+    private static final String FULL = "["
+            + "{\"id\":\"1\",\"name\":\"Beach Leisure Centre\",\"postcode\":\"AB24 5NR\"},"
+            + "{\"id\":\"2\",\"name\":\"Bon Accord Baths\",\"postcode\":\"AB11 6DE\"},"
+            + "{\"id\":\"3\",\"name\":\"Hazlehead Pool\",\"postcode\":\"AB15 8BE\"}]";
+    private static final String DELTA = "["
+            + "{\"id\":\"2\",\"name\":\"Bon Accord Baths and Leisure\",\"postcode\":\"AB11 6DE\"},"
+            + "{\"id\":\"3\",\"" + FeedDescriptor.TOMBSTONE_FIELD + "\":true},"
+            + "{\"id\":\"4\",\"name\":\"Tullos Pool\",\"postcode\":\"AB12 3DW\"}]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FeedClient client = new FeedClient(5000, 5000);
+    private ContentResolver cr;
+    private FeedIngester ingester;
+    private StubFeedServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        DataProvider provider = new DataProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = DataProvider.AUTHORITY;
+        provider.attachInfo(RuntimeEnvironment.application, info);
+        ShadowContentResolver.registerProvider(DataProvider.AUTHORITY, provider);
+
+        cr = RuntimeEnvironment.application.getContentResolver();
+        ingester = new FeedIngester(RuntimeEnvironment.application);
+        server = new StubFeedServer(new StubFeedServer.Handler() {
+            @Override
+            public StubFeedServer.Response respond(StubFeedServer.Request request) throws IOException {
+                if ((FeedClient.PARAM_UPDATED_SINCE + "=c1").equals(request.query)) {
+                    return StubFeedServer.Response.ok(DELTA.getBytes("UTF-8"))
+                            .header("X-Feed-Cursor", "c2")
+                            .header("X-Feed-Delta", "true");
+                }
+                return StubFeedServer.Response.ok(FULL.getBytes("UTF-8")).header("X-Feed-Cursor", "c1");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void deltaUpdatesInsertsAndDeletesRows() throws IOException {
+        File full = sync(OTHER_REGION, null);
+        assertFalse(client.isDelta(full));
+        assertEquals(3, ingest(OTHER_REGION, full));
+
+        full = sync(REGION, null);
+        assertEquals(3, ingest(REGION, full));
+        assertEquals("c1", client.downloadCursor(full));
+
+        File delta = sync(REGION, client.downloadCursor(full));
+        assertEquals(FeedClient.PARAM_UPDATED_SINCE + "=c1", server.requests().get(2).query);
+        assertTrue(client.isDelta(delta));
+        assertEquals("c2", client.downloadCursor(delta));
+        assertEquals(3, ingest(REGION, delta));
+
+        List<String> venues = venues(REGION);
+        assertEquals(3, venues.size());
+        assertEquals("1 Beach Leisure Centre", venues.get(0));
+        assertEquals("2 Bon Accord Baths and Leisure", venues.get(1));
+        assertEquals("4 Tullos Pool", venues.get(2));
+
+        // The tombstone only deletes the row in the region it was synced for
+        assertEquals(3, venues(OTHER_REGION).size());
+        assertTrue(venues(OTHER_REGION).contains("3 Hazlehead Pool"));
+    }
+
+    @Test
+    public void replayedDeltaChangesNothing() throws IOException {
+        File full = sync(REGION, null);
+        ingest(REGION, full);
+        File delta = sync(REGION, client.downloadCursor(full));
+        ingest(REGION, delta);
+
+        // Deleting a row already gone still counts as a change, nothing else does
+        assertEquals(1, ingest(REGION, delta));
+        assertEquals(3, venues(REGION).size());
+    }
+
+    // Download the venues feed for region, or the changes since cursor if there is one
+    private File sync(int region, String cursor) throws IOException {
+        String url = server.url("/regions/" + region + "/venues.json");
+        if (cursor != null) {
+            url += "?" + FeedClient.PARAM_UPDATED_SINCE + "=" + cursor;
+        }
+        File target = new File(folder.getRoot(), "venues_" + region + (cursor != null ? "_" + cursor : "") + ".json");
+        assertTrue(client.download(url, target));
+        return target;
+    }
+
+    private int ingest(int region, File download) throws IOException {
+        InputStream in = client.openDownload(download);
+        try {
+            return ingester.ingest(FeedDescriptor.VENUES, region, in, client.downloadLength(download), null);
+        } finally {
+            in.close();
+        }
+    }
+
+    // "venue_id name" of each venue stored for region, in id order
+    private List<String> venues(int region) {
+        Cursor cursor = cr.query(DataProvider.forRegion(DataProvider.CONTENT_URI_VENUES, region),
+                new String[] { DataProvider.KEY_VENUE_ID, DataProvider.KEY_NAME }, null, null, DataProvider.KEY_VENUE_ID);
+        List<String> venues = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                venues.add(cursor.getString(0) + " " + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return venues;
+    }
+}
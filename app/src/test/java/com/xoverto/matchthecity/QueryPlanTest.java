@@ -0,0 +1,284 @@
+package com.xoverto.matchthecity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every query in {@link DataProvider.DatabaseHelper#TYPICAL_QUERIES} is answered
+ * from an index, against the app's schema in desktop SQLite.
+ * <p>
+ * The plans are checked on an empty database, as the app first sees it, and again on a large
+ * fixture after ANALYZE, as it is after a sync and maintenance. With ./gradlew test -PtestVerbose
+ * the time each query takes on the fixture is printed, so a slow one shows up before it reaches a
+ * device.
+ */
+public class QueryPlanTest {
+
+    // Fixture size, per region
+    private static final int REGIONS = 2;
+    private static final int VENUES = 1000;
+    private static final int ACTIVITIES = 200;
+    private static final int SUB_ACTIVITIES = 1000;
+    private static final int OPPORTUNITIES = 20000;
+    private static final int OCCURRENCES_PER_OPPORTUNITY = 4;
+    private static final int SEARCHES = 5;
+    private static final int MATCHES_PER_SEARCH = 2000;
+
+    private static final boolean VERBOSE = Boolean.getBoolean("test.verbose");
+    private static final int TIMED_RUNS = 20;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    // SQLite 3.36 and later print "SCAN <table>", earlier versions "SCAN TABLE <table>"
+    private static final Pattern FULL_SCAN = Pattern.compile("^SCAN ");
+    private static final String TEMP_SORT = "USE TEMP B-TREE";
+
+    private Connection db;
+
+    @Before
+    public void createSchema() throws SQLException {
+        db = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement statement = db.createStatement();
+        try {
+            for (String sql : DataProvider.DatabaseHelper.createStatements()) {
+                statement.execute(sql);
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    @After
+    public void close() throws SQLException {
+        db.close();
+    }
+
+    @Test
+    public void typicalQueriesUseIndexesOnEmptyDatabase() throws SQLException {
+        assertIndexed(unindexedPlans());
+    }
+
+    @Test
+    public void typicalQueriesUseIndexesOnLargeFixture() throws SQLException {
+        long start = System.currentTimeMillis();
+        populate();
+        long built = System.currentTimeMillis() - start;
+        execute("ANALYZE");
+        assertIndexed(unindexedPlans());
+        if (!VERBOSE) {
+            return;
+        }
+
+        System.out.println("Fixture of " + REGIONS * OPPORTUNITIES + " opportunities built in " + built + "ms");
+        for (String[] query : DataProvider.DatabaseHelper.TYPICAL_QUERIES) {
+            String sql = buildQuery(query);
+            String[] args = sampleArgs(query[1]);
+            int rows = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                rows = countRows(sql, args);
+            }
+            long micros = (System.nanoTime() - begin) / 1000 / TIMED_RUNS;
+            System.out.println(String.format("%6dus %6d rows  %s", micros, rows, sql));
+        }
+    }
+
+    private void assertIndexed(List<String> unindexed) {
+        assertTrue("Unindexed query plans:\n" + join(unindexed), unindexed.isEmpty());
+    }
+
+    private List<String> unindexedPlans() throws SQLException {
+        List<String> unindexed = new ArrayList<String>();
+        for (String[] query : DataProvider.DatabaseHelper.TYPICAL_QUERIES) {
+            String sql = buildQuery(query);
+            PreparedStatement plan = db.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+            try {
+                bind(plan, sampleArgs(query[1]));
+                ResultSet rows = plan.executeQuery();
+                while (rows.next()) {
+                    String detail = rows.getString("detail");
+                    if (FULL_SCAN.matcher(detail).find() || detail.contains(TEMP_SORT)) {
+                        unindexed.add(sql + "\n    " + detail);
+                    }
+                }
+                rows.close();
+            } finally {
+                plan.close();
+            }
+        }
+        return unindexed;
+    }
+
+    // As SQLiteQueryBuilder.buildQueryString builds it for the provider
+    private static String buildQuery(String[] query) {
+        return "SELECT * FROM " + query[0] + " WHERE " + query[1] + " ORDER BY " + query[2];
+    }
+
+    /**
+     * Values for the arguments of selection, one per "column op ?" term, that match rows of the
+     * fixture.
+     */
+    private static String[] sampleArgs(String selection) {
+        List<String> args = new ArrayList<String>();
+        for (String term : selection.split(" AND ")) {
+            String column = term.substring(term.lastIndexOf('.', term.indexOf('?')) + 1).replaceAll("[<>=?]", "").trim();
+            if (column.equals(DataProvider.KEY_REGION_ID) || column.equals(DataProvider.KEY_MATCH_SEARCH_ID)) {
+                args.add("1");
+            } else if (column.equals(DataProvider.KEY_OCCURRENCE_START)) {
+                // A day of occurrences, starting from the fixture's first day
+                args.add(String.valueOf(term.contains(">=") ? 0 : DAY));
+            } else {
+                args.add("7");
+            }
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    private int countRows(String sql, String[] args) throws SQLException {
+        PreparedStatement query = db.prepareStatement(sql);
+        try {
+            bind(query, args);
+            ResultSet rows = query.executeQuery();
+            int count = 0;
+            while (rows.next()) {
+                count++;
+            }
+            rows.close();
+            return count;
+        } finally {
+            query.close();
+        }
+    }
+
+    private static void bind(PreparedStatement statement, String[] args) throws SQLException {
+        // The provider binds every argument as a string, so the column affinities apply
+        for (int i = 0; i < args.length; i++) {
+            statement.setString(i + 1, args[i]);
+        }
+    }
+
+    private void populate() throws SQLException {
+        Random random = new Random(42);
+        db.setAutoCommit(false);
+
+        PreparedStatement days = db.prepareStatement("INSERT INTO days (day_id, day_of_week) VALUES (?, ?)");
+        String[] dayNames = { "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday" };
+        for (int i = 0; i < dayNames.length; i++) {
+            days.setInt(1, i + 1);
+            days.setString(2, dayNames[i]);
+            days.executeUpdate();
+        }
+        days.close();
+
+        PreparedStatement venues = db.prepareStatement("INSERT INTO venues (region_id, venue_id, name, latitude, longitude) VALUES (?, ?, ?, ?, ?)");
+        PreparedStatement activities = db.prepareStatement("INSERT INTO activities (region_id, activity_id, title) VALUES (?, ?, ?)");
+        PreparedStatement subActivities = db.prepareStatement("INSERT INTO sub_activities (region_id, sub_activity_id, title, activity_id) VALUES (?, ?, ?, ?)");
+        PreparedStatement opportunities = db.prepareStatement("INSERT INTO opportunities (region_id, opportunity_id, name, description, activity_id, sub_activity_id, venue_id, start_time, end_time, day_id)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement occurrences = db.prepareStatement("INSERT INTO occurrences (region_id, opportunity_id, occurrence_start, occurrence_end) VALUES (?, ?, ?, ?)");
+
+        for (int region = 1; region <= REGIONS; region++) {
+            // Ids are unique across regions, as the feeds' are
+            int offset = (region - 1) * OPPORTUNITIES;
+            for (int i = 0; i < VENUES; i++) {
+                venues.setInt(1, region);
+                venues.setString(2, String.valueOf(offset + i));
+                venues.setString(3, "Venue " + random.nextInt());
+                venues.setDouble(4, 57 + random.nextDouble());
+                venues.setDouble(5, -2 - random.nextDouble());
+                venues.executeUpdate();
+            }
+            for (int i = 0; i < ACTIVITIES; i++) {
+                activities.setInt(1, region);
+                activities.setInt(2, offset + i);
+                activities.setString(3, "Activity " + random.nextInt());
+                activities.executeUpdate();
+            }
+            for (int i = 0; i < SUB_ACTIVITIES; i++) {
+                subActivities.setInt(1, region);
+                subActivities.setInt(2, offset + i);
+                subActivities.setString(3, "Sub activity " + random.nextInt());
+                subActivities.setInt(4, offset + random.nextInt(ACTIVITIES));
+                subActivities.executeUpdate();
+            }
+            for (int i = 0; i < OPPORTUNITIES; i++) {
+                int hour = 6 + random.nextInt(15);
+                opportunities.setInt(1, region);
+                opportunities.setInt(2, offset + i);
+                opportunities.setString(3, "Opportunity " + random.nextInt());
+                opportunities.setString(4, "Description " + random.nextInt());
+                opportunities.setInt(5, offset + random.nextInt(ACTIVITIES));
+                opportunities.setInt(6, offset + random.nextInt(SUB_ACTIVITIES));
+                opportunities.setInt(7, offset + random.nextInt(VENUES));
+                opportunities.setString(8, hour + ":00");
+                opportunities.setString(9, (hour + 1) + ":00");
+                opportunities.setInt(10, 1 + random.nextInt(7));
+                opportunities.executeUpdate();
+
+                long first = random.nextInt(7) * DAY + hour * DAY / 24;
+                for (int week = 0; week < OCCURRENCES_PER_OPPORTUNITY; week++) {
+                    occurrences.setInt(1, region);
+                    occurrences.setInt(2, offset + i);
+                    occurrences.setLong(3, first + week * 7 * DAY);
+                    occurrences.setLong(4, first + week * 7 * DAY + DAY / 24);
+                    occurrences.executeUpdate();
+                }
+            }
+        }
+        venues.close();
+        activities.close();
+        subActivities.close();
+        opportunities.close();
+        occurrences.close();
+
+        PreparedStatement searches = db.prepareStatement("INSERT INTO saved_searches (kind, name) VALUES ('keywords', ?)");
+        PreparedStatement matches = db.prepareStatement("INSERT OR IGNORE INTO search_matches (search_id, region_id, opportunity_id, found) VALUES (?, ?, ?, ?)");
+        for (int search = 1; search <= SEARCHES; search++) {
+            searches.setString(1, "Search " + search);
+            searches.executeUpdate();
+            for (int i = 0; i < MATCHES_PER_SEARCH; i++) {
+                int opportunity = random.nextInt(REGIONS * OPPORTUNITIES);
+                matches.setInt(1, search);
+                matches.setInt(2, 1 + opportunity / OPPORTUNITIES);
+                matches.setInt(3, opportunity);
+                matches.setLong(4, random.nextInt(1000000));
+                matches.executeUpdate();
+            }
+        }
+        searches.close();
+        matches.close();
+
+        db.commit();
+        db.setAutoCommit(true);
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement statement = db.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder joined = new StringBuilder();
+        for (String line : lines) {
+            joined.append(line).append('\n');
+        }
+        return joined.toString();
+    }
+}
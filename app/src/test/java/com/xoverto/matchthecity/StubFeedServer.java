@@ -0,0 +1,361 @@
+package com.xoverto.matchthecity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface for feed tests, standing in for the feed
+ * server the way a build pointed at it with -PfeedBaseUrl would.
+ * <p>
+ * Every request is passed to a {@link Handler}. Connections are kept alive between requests as
+ * the real server's are. A 200 response with an ETag is cut down to a 206 when the request asks
+ * for a range with a matching If-Range, so handlers only deal in whole bodies. A response can be
+ * cut off part way through with {@link #cutOffNextResponse(int)} to simulate a dropped
+ * connection.
+ * <p>
+ * For scale and soak runs the server can also add latency, limit its bandwidth, gzip bodies for
+ * clients that accept it, and answer every nth request with an error.
+ */
+public class StubFeedServer implements Closeable {
+
+    public interface Handler {
+        Response respond(Request request) throws IOException;
+    }
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        // Without the leading '?', or null if there was none
+        public final String query;
+        private final Map<String, String> headers;
+        // The status the server answered with
+        volatile int status;
+
+        Request(String method, String target, Map<String, String> headers) {
+            this.method = method;
+            int queryStart = target.indexOf('?');
+            this.path = queryStart >= 0 ? target.substring(0, queryStart) : target;
+            this.query = queryStart >= 0 ? target.substring(queryStart + 1) : null;
+            this.headers = headers;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    public static class Response {
+        final int status;
+        final byte[] body;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        public Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public static Response ok(byte[] body) {
+            return new Response(200, body);
+        }
+
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Response etag(String etag) {
+            return header("ETag", etag);
+        }
+    }
+
+    private final Handler handler;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    private volatile int cutOffAfter = -1;
+    private volatile long latencyMillis;
+    private volatile int bytesPerSecond;
+    private volatile boolean gzip;
+    private volatile int failEvery;
+    private volatile int failStatus;
+    private final AtomicInteger served = new AtomicInteger();
+
+    public StubFeedServer(Handler handler) throws IOException {
+        this.handler = handler;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    /**
+     * The requests served so far, oldest first.
+     */
+    public List<Request> requests() {
+        synchronized (requests) {
+            return new ArrayList<Request>(requests);
+        }
+    }
+
+    /**
+     * Send only the first bytes of the next response body, then drop the connection. The headers
+     * still give the whole length.
+     */
+    public void cutOffNextResponse(int bytes) {
+        cutOffAfter = bytes;
+    }
+
+    /**
+     * Wait millis before answering each request.
+     */
+    public void setLatency(long millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * Send bodies at no more than bytesPerSecond, or as fast as possible if 0.
+     */
+    public void setBandwidth(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Gzip the bodies of 200 responses to requests that accept it, before any range is cut.
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Answer every nth request with status and no body instead of passing it to the handler, or
+     * stop if n is 0.
+     */
+    public void failEvery(int n, int status) {
+        failStatus = status;
+        failEvery = n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                requests.add(request);
+                if (!respond(request, out)) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // The client went away
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    // False once the connection has been dropped
+    private boolean respond(Request request, OutputStream out) throws IOException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        int n = failEvery;
+        Response response = n > 0 && served.incrementAndGet() % n == 0
+                ? new Response(failStatus, null)
+                : handler.respond(request);
+        if (gzip && response.status == 200 && response.body != null
+                && String.valueOf(request.header("Accept-Encoding")).contains("gzip")) {
+            Response compressed = new Response(200, gzip(response.body));
+            compressed.headers.putAll(response.headers);
+            compressed.header("Content-Encoding", "gzip");
+            response = compressed;
+        }
+        int status = response.status;
+        byte[] body = response.body != null ? response.body : new byte[0];
+        Map<String, String> headers = new LinkedHashMap<String, String>(response.headers);
+
+        long offset = rangeStart(request, response);
+        if (offset > 0) {
+            status = 206;
+            headers.put("Content-Range", "bytes " + offset + "-" + (body.length - 1) + "/" + body.length);
+            byte[] rest = new byte[body.length - (int) offset];
+            System.arraycopy(body, (int) offset, rest, 0, rest.length);
+            body = rest;
+        }
+        request.status = status;
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+
+        int cutOff = cutOffAfter;
+        if (cutOff >= 0 && cutOff < body.length) {
+            cutOffAfter = -1;
+            write(out, body, cutOff);
+            out.flush();
+            return false;
+        }
+        write(out, body, body.length);
+        out.flush();
+        return true;
+    }
+
+    // Write the first length bytes of body, in a second's worth at a time if the bandwidth is limited
+    private void write(OutputStream out, byte[] body, int length) throws IOException {
+        int rate = bytesPerSecond;
+        if (rate <= 0) {
+            out.write(body, 0, length);
+            return;
+        }
+        for (int offset = 0; offset < length; offset += rate) {
+            int count = Math.min(rate, length - offset);
+            long start = System.currentTimeMillis();
+            out.write(body, offset, count);
+            out.flush();
+            long wait = count * 1000L / rate - (System.currentTimeMillis() - start);
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(body);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    // The offset to resume a 200 response at, or 0 to send it whole
+    private static long rangeStart(Request request, Response response) {
+        String range = request.header("Range");
+        String etag = response.headers.get("ETag");
+        if (response.status != 200 || range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+            return 0;
+        }
+        String ifRange = request.header("If-Range");
+        if (ifRange != null && !ifRange.equals(etag)) {
+            return 0;
+        }
+        long offset = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+        return offset < response.body.length ? offset : 0;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 404:
+                return "Not Found";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Status";
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.length() == 0) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        String[] parts = requestLine.split(" ");
+        return new Request(parts[0], parts[1], headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                String text = line.toString("ISO-8859-1");
+                return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+            }
+            line.write(c);
+        }
+        return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+    }
+}
@@ -0,0 +1,164 @@
+package com.xoverto.matchthecity;
+
+import android.content.Intent;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.os.BatteryManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link DataUpdateService} through repeated syncs of generated feeds, served by a
+ * {@link StubFeedServer} with latency, limited bandwidth, gzip and failing requests. After every
+ * round without failures the region holds exactly the rows of the current revision. The time each
+ * round takes, the heap left in use and the size of the database are held to limits, and printed
+ * with ./gradlew test -PtestVerbose.
+ * <p>
+ * Under Robolectric every query crosses threads, so a sync takes many times longer than on a
+ * device and the time limits are per row and relative: a sync of the changes has to cost a small
+ * share of the full sync, however slow the machine. Run larger feeds with
+ * ./gradlew test -PsoakScale=10. To soak a device build instead, serve the same feeds from a
+ * stub server on the desktop and build the app with -PfeedBaseUrl=http://host:port.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 19)
+public class SyncSoakTest {
+
+    private static final int[] REGIONS = { 4 };
+    private static final int SCALE = Integer.getInteger("soak.scale", 1);
+    private static final boolean VERBOSE = Boolean.getBoolean("test.verbose");
+    private static final int ROUNDS = 12;
+
+    private static final long LATENCY_MILLIS = 20;
+    private static final int BYTES_PER_SECOND = 4 * 1024 * 1024;
+    // Every so many requests fail in the odd rounds
+    private static final int FAIL_EVERY = 5;
+
+    private static final long MAX_FULL_SYNC_MILLIS_PER_ROW = 20;
+    private static final double MAX_CHANGES_SYNC_SHARE = 0.25;
+    private static final long MAX_HEAP_GROWTH_BYTES = 32 * 1024 * 1024;
+    private static final long MAX_DATABASE_BYTES_PER_ROW = 1024;
+    // Churn replaces rows rather than adding them, so the file stays near its first size
+    private static final double MAX_DATABASE_GROWTH = 1.5;
+
+    private final FeedGenerator generator = FeedGenerator.scaled(42, SCALE);
+    private StubFeedServer server;
+    private DataUpdateService service;
+
+    @Before
+    public void setUp() throws IOException {
+        DataProvider provider = new DataProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = DataProvider.AUTHORITY;
+        provider.attachInfo(RuntimeEnvironment.application, info);
+        ShadowContentResolver.registerProvider(DataProvider.AUTHORITY, provider);
+
+        // Charging, so SyncPolicy lets the heavy feeds sync too
+        Intent battery = new Intent(Intent.ACTION_BATTERY_CHANGED);
+        battery.putExtra(BatteryManager.EXTRA_STATUS, BatteryManager.BATTERY_STATUS_CHARGING);
+        battery.putExtra(BatteryManager.EXTRA_LEVEL, 80);
+        battery.putExtra(BatteryManager.EXTRA_SCALE, 100);
+        RuntimeEnvironment.application.sendStickyBroadcast(battery);
+
+        server = new StubFeedServer(generator);
+        server.setLatency(LATENCY_MILLIS);
+        server.setBandwidth(BYTES_PER_SECOND);
+        server.setGzip(true);
+
+        service = Robolectric.setupService(DataUpdateService.class);
+        service.setFeedBaseUrl(server.url(""));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void repeatedSyncsKeepRowsTimeHeapAndDatabaseInBounds() {
+        File database = RuntimeEnvironment.application.getDatabasePath(DataProvider.DatabaseHelper.DATABASE_NAME);
+        long baselineHeap = 0;
+        long firstDatabaseSize = 0;
+        long fullSyncMillis = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            generator.setRevision(round);
+            boolean failing = round % 2 == 1;
+            server.failEvery(failing ? FAIL_EVERY : 0, 503);
+            if (failing) {
+                // And one download dropped part way, to be resumed next round
+                server.cutOffNextResponse(256);
+            }
+
+            long start = System.currentTimeMillis();
+            service.refreshData(REGIONS);
+            long millis = System.currentTimeMillis() - start;
+
+            int rows = 0;
+            if (!failing) {
+                for (int region : REGIONS) {
+                    for (FeedDescriptor feed : FeedDescriptor.ALL) {
+                        assertEquals(feed.name + " in region " + region + " after round " + round,
+                                generator.rows(feed, round), count(feed, region));
+                        rows += generator.rows(feed, round);
+                    }
+                }
+            }
+            long heap = usedHeap();
+            long databaseSize = database.length();
+            if (VERBOSE) {
+                System.out.println(String.format("Round %2d%s: %6dms, %5dKB heap, %6dKB database",
+                        round, failing ? " (failing)" : "", millis, heap / 1024, databaseSize / 1024));
+            }
+
+            if (round == 0) {
+                assertTrue("Full sync of " + rows + " rows took " + millis + "ms", millis <= rows * MAX_FULL_SYNC_MILLIS_PER_ROW);
+                assertTrue("Database of " + databaseSize + " bytes for " + rows + " rows",
+                        databaseSize <= rows * MAX_DATABASE_BYTES_PER_ROW);
+                baselineHeap = heap;
+                firstDatabaseSize = databaseSize;
+                fullSyncMillis = millis;
+            } else {
+                assertTrue("Sync of changes took " + millis + "ms in round " + round + " against " + fullSyncMillis + "ms in full",
+                        millis <= fullSyncMillis * MAX_CHANGES_SYNC_SHARE);
+            }
+        }
+
+        long heapGrowth = usedHeap() - baselineHeap;
+        assertTrue("Heap grew by " + heapGrowth + " bytes", heapGrowth <= MAX_HEAP_GROWTH_BYTES);
+        assertTrue("Database grew from " + firstDatabaseSize + " to " + database.length() + " bytes",
+                database.length() <= firstDatabaseSize * MAX_DATABASE_GROWTH);
+    }
+
+    private int count(FeedDescriptor feed, int region) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(DataProvider.forRegion(feed.contentUri, region),
+                new String[] { feed.getKey().column }, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
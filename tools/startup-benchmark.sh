@@ -0,0 +1,125 @@
+#!/bin/sh
+#
+# Compare cold start between two builds of the app on a connected device.
+#
+#   tools/startup-benchmark.sh before.apk after.apk [runs]
+#
+# Each APK is installed over the last (keeping its data, so both builds start
+# from a synced database) and launched cold the given number of times, 10 by
+# default, after one launch that isn't counted. Once the home screen is up the
+# script opens its first option, What's on today, with key events. For each
+# launch it records:
+#
+#   launch         TotalTime from am start -W, process start to the first
+#                  frame of HomeActivity
+#   list_displayed the time ActivityManager logs for the first frame of
+#                  OpportunitiesActivity
+#   launcher_drawn StartupTrace milestone, after the first draw of the home grid
+#   first_content  StartupTrace milestone, the first list with rows, timed from
+#                  process start so it includes the time adb takes to send the
+#                  key events
+#
+# and prints the median and mean of each, per build. The StartupTrace
+# milestones come from the "First content" line it logs under the STARTUP tag,
+# so a build from before StartupTrace only has the first two.
+
+set -e
+
+PACKAGE=com.xoverto.matchthecity
+LAUNCHER=$PACKAGE/.HomeActivity
+CONTENT_TIMEOUT=30
+# How long to wait for StartupTrace once the list is displayed
+CONTENT_GRACE=5
+
+if [ $# -lt 2 ]; then
+    echo "Usage: $0 before.apk after.apk [runs]" >&2
+    exit 1
+fi
+BEFORE=$1
+AFTER=$2
+RUNS=${3:-10}
+
+# Print the value of milestone from a StartupTrace line, e.g. {launcher_drawn=412, first_content=903}, or -
+milestone() {
+    value=$(echo "$2" | sed -n "s/.*[{ ]$1=\([0-9]*\).*/\1/p")
+    echo "${value:--}"
+}
+
+# Print the ms in an ActivityManager "Displayed" line, e.g. +1s234ms, or -
+displayed_ms() {
+    value=$(echo "$1" | sed -n 's/.*: +\([0-9s]*\)ms.*/\1/p' | awk -F's' 'NF == 2 { print $1 * 1000 + $2; next } { print $1 }')
+    echo "${value:--}"
+}
+
+# One cold launch, printing "launch list_displayed launcher_drawn first_content" in ms
+launch_once() {
+    adb shell am force-stop $PACKAGE
+    adb logcat -c
+    total=$(adb shell am start -W -n $LAUNCHER | tr -d '\r' | sed -n 's/^TotalTime: *//p')
+
+    # Focus the first option of the home screen and open it
+    adb shell input keyevent KEYCODE_DPAD_DOWN
+    adb shell input keyevent KEYCODE_ENTER
+
+    displayed=""
+    content=""
+    waited=0
+    grace=$CONTENT_GRACE
+    while [ -z "$content" ] && [ $waited -lt $CONTENT_TIMEOUT ] && [ $grace -gt 0 ]; do
+        sleep 1
+        waited=$((waited + 1))
+        log=$(adb logcat -d | tr -d '\r')
+        displayed=$(echo "$log" | grep "Displayed $PACKAGE/.OpportunitiesActivity" | tail -n 1 || true)
+        content=$(echo "$log" | grep "STARTUP.*First content" | tail -n 1 || true)
+        if [ -n "$displayed" ]; then
+            grace=$((grace - 1))
+        fi
+    done
+    echo "${total:--} $(displayed_ms "$displayed") $(milestone launcher_drawn "$content") $(milestone first_content "$content")"
+}
+
+# Print the median and mean of the numbers on stdin, ignoring "-"
+summarise() {
+    grep -v '^-$' | sort -n | awk '
+        { values[NR] = $1; sum += $1 }
+        END {
+            if (NR == 0) { print "      -       -   (no samples)"; exit }
+            median = NR % 2 ? values[(NR + 1) / 2] : (values[NR / 2] + values[NR / 2 + 1]) / 2
+            printf "%7.0f %7.0f   (%d samples)\n", median, sum / NR, NR
+        }'
+}
+
+benchmark() {
+    apk=$1
+    results=$2
+    echo "Installing $apk" >&2
+    adb install -r "$apk" > /dev/null
+    launch_once > /dev/null
+    : > "$results"
+    i=1
+    while [ $i -le "$RUNS" ]; do
+        launch_once >> "$results"
+        echo "  run $i: $(tail -n 1 "$results")" >&2
+        i=$((i + 1))
+    done
+}
+
+report() {
+    echo "$1                 median    mean"
+    echo "  launch          $(cut -d' ' -f1 "$2" | summarise)"
+    echo "  list_displayed  $(cut -d' ' -f2 "$2" | summarise)"
+    echo "  launcher_drawn  $(cut -d' ' -f3 "$2" | summarise)"
+    echo "  first_content   $(cut -d' ' -f4 "$2" | summarise)"
+}
+
+BEFORE_RESULTS=$(mktemp)
+AFTER_RESULTS=$(mktemp)
+trap 'rm -f "$BEFORE_RESULTS" "$AFTER_RESULTS"' EXIT
+
+benchmark "$BEFORE" "$BEFORE_RESULTS"
+benchmark "$AFTER" "$AFTER_RESULTS"
+
+echo
+echo "Cold start over $RUNS launches, ms"
+report "before" "$BEFORE_RESULTS"
+report "after " "$AFTER_RESULTS"